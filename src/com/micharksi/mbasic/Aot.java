@@ -0,0 +1,696 @@
+package com.micharksi.mbasic;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+
+import static com.micharksi.mbasic.ClassEmitter.*;
+
+// Compiles a resolved program ahead of time into JVM classes, written as a
+// runnable jar or as class files under a directory. Every function
+// declaration becomes a class whose static body method holds its code,
+// compiled as the Jit compiles a function, and each closure is an
+// instance of that class. Globals are static final fields holding their
+// Cells. Top-level code runs from a main class, split over as many classes
+// as the JVM's size limits need. A call to a global function that nothing
+// can rebind invokes its body method directly.
+class Aot extends MethodCompiler {
+    // A class of top-level code is finished once its code or constant
+    // pool reaches this size, well before the JVM's limit of 65535.
+    private static final int CLASS_LIMIT = 32 * 1024;
+    private static final int GLOBALS_PER_CLASS = 8192;
+
+    private static final String AOT = PACKAGE + "Aot";
+    private static final String FUNCTION = PACKAGE + "AotFunction";
+    private static final String BIN = PACKAGE + "Bin";
+    private static final String HEX = PACKAGE + "Hex";
+    private static final String STRING = "java/lang/String";
+
+    private static final String BODY = "(" + ARRAY + "L" + INTERPRETER + ";"
+            + ARRAY + ")L" + OBJECT + ";";
+    private static final String RUN = "(L" + INTERPRETER + ";)V";
+
+    // The first local of a function's body method.
+    private static final int CAPTURES = 0;
+
+    private static final TokenType[] TYPES = TokenType.values();
+
+    // The Interpreter compiled programs run with, which holds the builtins.
+    static final Interpreter interpreter = new Interpreter();
+
+    private final Program program;
+    private final ClassEmitter emitter;
+    // Creates the class's constants when it is initialized.
+    private final ClassEmitter.Method clinit;
+
+    // Static fields holding constants, by what they hold.
+    private final Map<String, String> constants = new HashMap<>();
+
+    // The last token compiled, for reporting a class that is too large.
+    private Token lastToken;
+
+    private Aot(Program program, Stmt.Function function,
+                ClassEmitter emitter, ClassEmitter.Method method) {
+        super(function, method, AOT,
+                function != null ? INTERPRETER_LOCAL : 0,
+                function != null ? DISCARD + 1 : 1);
+        this.program = program;
+        this.emitter = emitter;
+        this.clinit = emitter.method(ACC_STATIC, "<clinit>", "()V");
+    }
+
+    // The classes of one program, and what they share.
+    private static class Program {
+        final String name;
+        final Map<String, byte[]> classes = new LinkedHashMap<>();
+
+        // Global functions declared once and never assigned, which a call
+        // by that name can only reach once the declaration has run.
+        final Map<String, Stmt.Function> functions = new HashMap<>();
+        private final Map<Stmt.Function, String> classNames =
+                new IdentityHashMap<>();
+
+        // The class and field holding each global's Cell.
+        private final Map<String, String[]> globals = new HashMap<>();
+        private ClassEmitter globalClass;
+        private ClassEmitter.Method globalInit;
+
+        Program(String name) {
+            this.name = name;
+        }
+
+        String className(Stmt.Function function) {
+            String name = classNames.get(function);
+            if (name == null) {
+                name = this.name + "$" + classNames.size() + "_"
+                        + identifier(function.name.lexeme);
+                classNames.put(function, name);
+            }
+            return name;
+        }
+
+        String[] global(String name) {
+            String[] field = globals.get(name);
+            if (field != null) return field;
+
+            int index = globals.size() % GLOBALS_PER_CLASS;
+            if (index == 0) {
+                finishGlobals();
+                globalClass = new ClassEmitter(ACC_FINAL | ACC_SUPER,
+                        this.name + "$Globals"
+                                + globals.size() / GLOBALS_PER_CLASS,
+                        OBJECT);
+                globalInit = globalClass.method(ACC_STATIC, "<clinit>", "()V");
+            }
+
+            field = new String[] { globalClass.name, "g" + index };
+            globalClass.field(ACC_STATIC | ACC_FINAL, field[1], "L" + CELL + ";");
+            globalInit.ldc(globalClass.string(name));
+            globalInit.invoke(INVOKESTATIC, AOT, "cell",
+                    "(L" + STRING + ";)L" + CELL + ";");
+            globalInit.field(PUTSTATIC, field[0], field[1], "L" + CELL + ";");
+
+            globals.put(name, field);
+            return field;
+        }
+
+        void finishGlobals() {
+            if (globalClass == null) return;
+
+            globalInit.op(RETURN, 0);
+            classes.put(globalClass.name, globalClass.toBytes());
+            globalClass = null;
+        }
+    }
+
+    // Compiles the program, whose top-level code is statements, into
+    // output: a jar if its name ends in .jar, and otherwise a directory.
+    // Reports a compile error and writes nothing if part of the program
+    // is too large for the JVM.
+    static void compile(List<Stmt> statements, String name, Path output)
+            throws IOException {
+        Program program = new Program(PACKAGE + "Compiled$" + identifier(name));
+        collectFunctions(statements, program);
+
+        List<String> chunks = new ArrayList<>();
+        int i = 0;
+        while (i < statements.size()) {
+            String chunk = program.name + "$Main" + chunks.size();
+            ClassEmitter emitter = new ClassEmitter(ACC_FINAL | ACC_SUPER,
+                    chunk, OBJECT);
+            Aot unit = new Aot(program, null, emitter,
+                    emitter.method(ACC_STATIC, "run", RUN));
+            try {
+                do {
+                    unit.compile(statements.get(i++));
+                } while (i < statements.size() && !unit.isFull());
+                unit.method.op(RETURN, 0);
+                unit.finish();
+            } catch (IllegalStateException error) {
+                // A chunk of literals loads no token, so look for one in
+                // the statement being compiled.
+                Token token = unit.lastToken != null
+                        ? unit.lastToken : tokenIn(statements.get(i - 1));
+                if (token != null) {
+                    MBasic.error(token, "Too large to compile ahead of time.");
+                } else {
+                    // Unreachable from parsed source, where every
+                    // statement large enough has a token.
+                    MBasic.error(new Token(TokenType.EOF, "", null, 0),
+                            "Too large to compile ahead of time.");
+                }
+            }
+            chunks.add(chunk);
+        }
+        program.finishGlobals();
+        if (MBasic.compileError) return;
+
+        program.classes.put(program.name, main(program.name, chunks));
+        if (output.getFileName().toString().endsWith(".jar")) {
+            writeJar(program, output);
+        } else {
+            writeClasses(program, output);
+        }
+    }
+
+    // Only top-level statements can declare a global function: an if
+    // branch is never a declaration, and an elided block declares nothing.
+    private static void collectFunctions(List<Stmt> statements,
+                                         Program program) {
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Function) {
+                Stmt.Function function = (Stmt.Function)statement;
+                if (function.slot == -1 && !function.rebound) {
+                    program.functions.put(function.name.lexeme, function);
+                }
+            }
+        }
+    }
+
+    // Some token of stmt, or null if it is made only of literals.
+    private static Token tokenIn(Stmt stmt) {
+        if (stmt instanceof Stmt.Function) return ((Stmt.Function)stmt).name;
+        if (stmt instanceof Stmt.Var) return ((Stmt.Var)stmt).name;
+        if (stmt instanceof Stmt.Return) return ((Stmt.Return)stmt).keyword;
+        if (stmt instanceof Stmt.Namespace) {
+            return ((Stmt.Namespace)stmt).identifier;
+        }
+        if (stmt instanceof Stmt.Expression) {
+            return tokenIn(((Stmt.Expression)stmt).expression);
+        }
+        if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If)stmt;
+            Token token = tokenIn(ifStmt.condition);
+            if (token == null) token = tokenIn(ifStmt.thenBranch);
+            if (token == null && ifStmt.elseBranch != null) {
+                token = tokenIn(ifStmt.elseBranch);
+            }
+            return token;
+        }
+        if (stmt instanceof Stmt.Block) {
+            for (Stmt statement : ((Stmt.Block)stmt).statements) {
+                Token token = tokenIn(statement);
+                if (token != null) return token;
+            }
+        }
+        return null;
+    }
+
+    private static Token tokenIn(Expr expr) {
+        if (expr instanceof Expr.Assign) return ((Expr.Assign)expr).name;
+        if (expr instanceof Expr.Binary) return ((Expr.Binary)expr).operator;
+        if (expr instanceof Expr.Call) return ((Expr.Call)expr).paren;
+        if (expr instanceof Expr.Logical) return ((Expr.Logical)expr).operator;
+        if (expr instanceof Expr.Unary) return ((Expr.Unary)expr).operator;
+        if (expr instanceof Expr.Variable) return ((Expr.Variable)expr).name;
+        if (expr instanceof Expr.Grouping) {
+            return tokenIn(((Expr.Grouping)expr).expression);
+        }
+        return null;
+    }
+
+    // The class java runs: main() hands an instance to Aot.main(), and
+    // run() runs each class of top-level code in turn.
+    private static byte[] main(String name, List<String> chunks) {
+        ClassEmitter emitter = new ClassEmitter(ACC_PUBLIC | ACC_FINAL | ACC_SUPER,
+                name, OBJECT, "java/lang/Runnable");
+
+        ClassEmitter.Method init = emitter.method(ACC_PUBLIC, "<init>", "()V");
+        init.aload(0);
+        init.invoke(INVOKESPECIAL, OBJECT, "<init>", "()V");
+        init.op(RETURN, 0);
+
+        ClassEmitter.Method run = emitter.method(ACC_PUBLIC, "run", "()V");
+        for (String chunk : chunks) {
+            run.field(GETSTATIC, AOT, "interpreter", "L" + INTERPRETER + ";");
+            run.invoke(INVOKESTATIC, chunk, "run", RUN);
+        }
+        run.op(RETURN, 0);
+
+        ClassEmitter.Method main = emitter.method(ACC_PUBLIC | ACC_STATIC,
+                "main", "([L" + STRING + ";)V");
+        main.type(NEW, name);
+        main.op(DUP, 1);
+        main.invoke(INVOKESPECIAL, name, "<init>", "()V");
+        main.invoke(INVOKESTATIC, AOT, "main", "(Ljava/lang/Runnable;)V");
+        main.op(RETURN, 0);
+
+        return emitter.toBytes();
+    }
+
+    // Compiles a function declaration into a class of its own.
+    private void compileFunction(Stmt.Function stmt) {
+        String name = program.className(stmt);
+        ClassEmitter emitter = new ClassEmitter(ACC_FINAL | ACC_SUPER, name,
+                FUNCTION);
+        Aot unit = new Aot(program, stmt, emitter,
+                emitter.method(ACC_STATIC, "body", BODY));
+        try {
+            unit.body();
+            unit.finish();
+        } catch (IllegalStateException error) {
+            MBasic.error(stmt.name, "Too large to compile ahead of time.");
+        }
+    }
+
+    private void body() {
+        ClassEmitter.Method init = emitter.method(0, "<init>",
+                "(" + ARRAY + ")V");
+        init.aload(0);
+        init.ldc(emitter.string(function.name.lexeme));
+        init.iconst(function.params.size());
+        init.aload(1);
+        init.invoke(INVOKESPECIAL, FUNCTION, "<init>",
+                "(L" + STRING + ";I" + ARRAY + ")V");
+        init.op(RETURN, 0);
+
+        ClassEmitter.Method invoke = emitter.method(0, "invoke",
+                "(L" + INTERPRETER + ";" + ARRAY + ")L" + OBJECT + ";");
+        invoke.aload(0);
+        invoke.field(GETFIELD, FUNCTION, "captures", ARRAY);
+        invoke.aload(1);
+        invoke.aload(2);
+        invoke.invoke(INVOKESTATIC, emitter.name, "body", BODY);
+        invoke.op(ARETURN, -1);
+
+        compileBody();
+    }
+
+    private boolean isFull() {
+        return method.length() > CLASS_LIMIT || clinit.length() > CLASS_LIMIT
+                || emitter.poolSize() > CLASS_LIMIT;
+    }
+
+    private void finish() {
+        clinit.op(RETURN, 0);
+        program.classes.put(emitter.name, emitter.toBytes());
+    }
+
+    // Pushes a constant from a static field of this class, which the
+    // class creates when it is initialized. key identifies the value, and
+    // create() emits the code that creates it.
+    private void loadConstant(String key, String descriptor, Runnable create) {
+        String field = constants.get(key);
+        if (field == null) {
+            field = "k" + constants.size();
+            constants.put(key, field);
+            emitter.field(ACC_PRIVATE | ACC_STATIC | ACC_FINAL, field,
+                    descriptor);
+            create.run();
+            clinit.field(PUTSTATIC, emitter.name, field, descriptor);
+        }
+
+        method.field(GETSTATIC, emitter.name, field, descriptor);
+    }
+
+    @Override
+    void loadToken(Token token) {
+        lastToken = token;
+        loadConstant("T" + token.type.ordinal() + " " + token.line + " "
+                + token.lexeme, "L" + TOKEN + ";", () -> {
+            clinit.iconst(token.type.ordinal());
+            clinit.ldc(emitter.string(token.lexeme));
+            clinit.iconst(token.line);
+            clinit.invoke(INVOKESTATIC, AOT, "token",
+                    "(IL" + STRING + ";I)L" + TOKEN + ";");
+        });
+    }
+
+    @Override
+    void loadCell(Cell cell, Token name) {
+        String[] field = program.global(name.lexeme);
+        method.field(GETSTATIC, field[0], field[1], "L" + CELL + ";");
+    }
+
+    @Override
+    void loadCaptures() {
+        method.aload(CAPTURES);
+    }
+
+    @Override
+    void loadLiteral(Object value) {
+        if (value instanceof String) {
+            method.ldc(emitter.string((String)value));
+        } else if (value instanceof Integer) {
+            loadConstant("I" + value, "L" + OBJECT + ";", () -> {
+                clinit.iconst((Integer)value);
+                clinit.invoke(INVOKESTATIC, "java/lang/Integer", "valueOf",
+                        "(I)Ljava/lang/Integer;");
+            });
+        } else if (value instanceof Double) {
+            double number = (Double)value;
+            loadConstant("D" + Double.doubleToRawLongBits(number),
+                    "L" + OBJECT + ";", () -> {
+                clinit.ldc2(emitter.doubleConstant(number));
+                clinit.invoke(INVOKESTATIC, "java/lang/Double", "valueOf",
+                        "(D)Ljava/lang/Double;");
+            });
+        } else {
+            boolean isBin = value instanceof Bin;
+            String type = isBin ? BIN : HEX;
+            long bits = isBin ? ((Bin)value).value : ((Hex)value).value;
+            loadConstant(type + bits, "L" + OBJECT + ";", () -> {
+                clinit.type(NEW, type);
+                clinit.op(DUP, 1);
+                clinit.ldc2(emitter.longConstant(bits));
+                clinit.invoke(INVOKESPECIAL, type, "<init>", "(J)V");
+            });
+        }
+    }
+
+    @Override
+    String loadCallSite(Expr.Call expr) {
+        loadToken(expr.paren);
+        return "L" + TOKEN + ";";
+    }
+
+    // Every closure of this function is an instance of its class, and
+    // differs from the others only in its captures.
+    @Override
+    boolean checkSelf(Expr.Call expr, int callee, ClassEmitter.Label other) {
+        if (function == null
+                || expr.arguments.size() != function.params.size()) {
+            return false;
+        }
+        method.aload(callee);
+        method.type(INSTANCEOF, emitter.name);
+        method.jump(IFEQ, other);
+        return true;
+    }
+
+    @Override
+    void invokeSelf(int callee, int arguments) {
+        capturesOf(callee);
+        method.aload(INTERPRETER_LOCAL);
+        method.aload(arguments);
+        method.invoke(INVOKESTATIC, emitter.name, "body", BODY);
+    }
+
+    // Loops back with the captures of the closure called.
+    @Override
+    void enterSelf(int callee) {
+        capturesOf(callee);
+        method.astore(CAPTURES);
+    }
+
+    // A global function nothing rebinds is the only closure of its class.
+    @Override
+    boolean alwaysSelf(Expr.Call expr) {
+        return function != null && target(expr) == function;
+    }
+
+    private void capturesOf(int closure) {
+        method.aload(closure);
+        method.type(CHECKCAST, FUNCTION);
+        method.field(GETFIELD, FUNCTION, "captures", ARRAY);
+    }
+
+    // Pushes an array of the call's arguments.
+    private void arguments(Expr.Call expr) {
+        method.iconst(expr.arguments.size());
+        method.type(ANEWARRAY, OBJECT);
+        for (int i = 0; i < expr.arguments.size(); i++) {
+            method.op(DUP, 1);
+            method.iconst(i);
+            compile(expr.arguments.get(i));
+            method.op(AASTORE, -3);
+        }
+    }
+
+    // The global function a call always reaches, if there is one and the
+    // argument count matches.
+    private Stmt.Function target(Expr.Call expr) {
+        if (!(expr.callee instanceof Expr.Variable)) return null;
+
+        Expr.Variable callee = (Expr.Variable)expr.callee;
+        if (callee.depth != -1 || callee.capture != -1) return null;
+
+        Stmt.Function target = program.functions.get(callee.name.lexeme);
+        if (target == null
+                || target.params.size() != expr.arguments.size()) {
+            return null;
+        }
+        return target;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        Stmt.Function target = target(expr);
+        if (target != null) {
+            // The callee is still read, so that a call made before the
+            // declaration has run fails as it would otherwise.
+            compile(expr.callee);
+            method.op(POP, -1);
+
+            // Global functions capture nothing.
+            method.op(ACONST_NULL, 1);
+            method.aload(interpreterLocal);
+            arguments(expr);
+            method.invoke(INVOKESTATIC, program.className(target), "body",
+                    BODY);
+            method.aload(interpreterLocal);
+            method.op(SWAP, 0);
+            method.invoke(INVOKESTATIC, TAIL_CALL, "run",
+                    "(L" + INTERPRETER + ";L" + OBJECT + ";)L" + OBJECT + ";");
+            return null;
+        }
+
+        return super.visitCallExpr(expr);
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        lastToken = stmt.name;
+        compileFunction(stmt);
+        String owner = program.className(stmt);
+
+        // A boxed name gets its Box first, so a closure capturing the
+        // name can capture the Box.
+        if (stmt.boxed) {
+            method.op(ACONST_NULL, 1);
+            box();
+            method.astore(local(0, stmt.slot));
+        }
+
+        int captures = nextLocal++;
+        method.iconst(stmt.captures.size());
+        method.type(ANEWARRAY, OBJECT);
+        method.astore(captures);
+
+        int closure = nextLocal++;
+        method.type(NEW, owner);
+        method.op(DUP, 1);
+        method.aload(captures);
+        method.invoke(INVOKESPECIAL, owner, "<init>", "(" + ARRAY + ")V");
+        method.astore(closure);
+
+        for (int i = 0; i < stmt.captures.size(); i++) {
+            Capture capture = stmt.captures.get(i);
+            method.aload(captures);
+            method.iconst(i);
+            if (capture.self) {
+                method.aload(closure);
+            } else if (capture.depth == -1) {
+                loadCapture(capture.slot, false);
+            } else {
+                method.aload(local(capture.depth, capture.slot));
+            }
+            method.op(AASTORE, -3);
+        }
+
+        if (stmt.boxed) {
+            method.aload(local(0, stmt.slot));
+            method.type(CHECKCAST, BOX);
+            method.aload(closure);
+            method.field(PUTFIELD, BOX, "value", "L" + OBJECT + ";");
+        } else if (stmt.slot != -1) {
+            method.aload(closure);
+            method.astore(local(0, stmt.slot));
+        } else {
+            loadCell(stmt.cell, stmt.name);
+            method.aload(closure);
+            method.invoke(INVOKEVIRTUAL, CELL, "define",
+                    "(L" + OBJECT + ";)V");
+        }
+
+        nextLocal -= 2;
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        lastToken = stmt.name;
+        return super.visitVarStmt(stmt);
+    }
+
+    // A name usable in a class name.
+    private static String identifier(String name) {
+        StringBuilder builder = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            builder.append(Character.isLetterOrDigit(c) ? c : '_');
+        }
+        return builder.toString();
+    }
+
+    // Writes the program's classes and the classes they run on, which are
+    // the ones this class was loaded with, into a jar java -jar can run.
+    private static void writeJar(Program program, Path output)
+            throws IOException {
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.put(Attributes.Name.MAIN_CLASS,
+                program.name.replace('/', '.'));
+
+        try (JarOutputStream jar = new JarOutputStream(
+                Files.newOutputStream(output), manifest)) {
+            for (Map.Entry<String, byte[]> entry : program.classes.entrySet()) {
+                jar.putNextEntry(new JarEntry(entry.getKey() + ".class"));
+                jar.write(entry.getValue());
+                jar.closeEntry();
+            }
+            copyRuntime(jar);
+        }
+    }
+
+    private static void copyRuntime(JarOutputStream jar) throws IOException {
+        Path location;
+        try {
+            location = Paths.get(Aot.class.getProtectionDomain()
+                    .getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException error) {
+            throw new IOException(error);
+        }
+
+        if (Files.isDirectory(location)) {
+            try (Stream<Path> files = Files.list(location.resolve(PACKAGE))) {
+                for (Path file : (Iterable<Path>)files::iterator) {
+                    String name = file.getFileName().toString();
+                    if (!isRuntimeClass(name)) continue;
+
+                    jar.putNextEntry(new JarEntry(PACKAGE + name));
+                    Files.copy(file, jar);
+                    jar.closeEntry();
+                }
+            }
+            return;
+        }
+
+        try (JarFile source = new JarFile(location.toFile())) {
+            Enumeration<JarEntry> entries = source.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (!name.startsWith(PACKAGE)
+                        || name.indexOf('/', PACKAGE.length()) != -1
+                        || !isRuntimeClass(name.substring(PACKAGE.length()))) {
+                    continue;
+                }
+
+                jar.putNextEntry(new JarEntry(name));
+                try (InputStream in = source.getInputStream(entry)) {
+                    copy(in, jar);
+                }
+                jar.closeEntry();
+            }
+        }
+    }
+
+    // Classes of this package, other than ones compiled from a program.
+    private static boolean isRuntimeClass(String name) {
+        return name.endsWith(".class") && !name.startsWith("Compiled$");
+    }
+
+    private static void copy(InputStream in, OutputStream out)
+            throws IOException {
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1) out.write(buffer, 0, count);
+    }
+
+    // Writes the program's classes under directory, to run with the
+    // MBasic classes on the class path.
+    private static void writeClasses(Program program, Path directory)
+            throws IOException {
+        Path target = directory.resolve(PACKAGE);
+        Files.createDirectories(target);
+        for (Map.Entry<String, byte[]> entry : program.classes.entrySet()) {
+            String name = entry.getKey().substring(PACKAGE.length());
+            Files.write(target.resolve(name + ".class"), entry.getValue());
+        }
+    }
+
+    // Runtime support called from compiled programs.
+
+    // Runs a program's top-level code as runPath runs a file, with the
+    // same exit code for a runtime error.
+    static void main(Runnable program) {
+        try {
+            program.run();
+        } catch (RuntimeError error) {
+            MBasic.runtimeError(error);
+        }
+
+        if (MBasic.runtimeError) System.exit(70);
+    }
+
+    static Cell cell(String name) {
+        return interpreter.globals.cell(name);
+    }
+
+    static Token token(int type, String lexeme, int line) {
+        return new Token(TYPES[type], lexeme, null, line);
+    }
+
+    static Object call(Object callee, Object[] arguments,
+                       Interpreter interpreter, Token paren) {
+        return Interpreter.checkCall(paren, callee, arguments.length)
+                .call(interpreter, arguments);
+    }
+
+    static Object tailCall(Object callee, Object[] arguments,
+                           Interpreter interpreter, Token paren,
+                           boolean discard) {
+        return new TailCall(
+                Interpreter.checkCall(paren, callee, arguments.length),
+                arguments, discard);
+    }
+}
@@ -0,0 +1,38 @@
+package com.micharksi.mbasic;
+
+// A function compiled ahead of time by Aot. Each function declaration of
+// the program is a subclass whose static body method holds the code, and
+// each closure the declaration creates is an instance of it.
+abstract class AotFunction implements MBasicCallable {
+    private final String name;
+    private final int arity;
+
+    // The free variables of the body, laid out as the declaration's
+    // captures describe.
+    final Object[] captures;
+
+    AotFunction(String name, int arity, Object[] captures) {
+        this.name = name;
+        this.arity = arity;
+        this.captures = captures;
+    }
+
+    @Override
+    public String toString() {
+        return "<fn " + name + ">";
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        return TailCall.run(interpreter, invoke(interpreter, arguments));
+    }
+
+    // Runs the body once. The result is either the function's value or a
+    // TailCall for the trampoline to make.
+    abstract Object invoke(Interpreter interpreter, Object[] arguments);
+}
@@ -0,0 +1,566 @@
+package com.micharksi.mbasic;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Keeps a script's resolved and optimized statements, and its token
+// listing, in a binary file next to it: foo.mb is cached in foo.mbc. The
+// file starts with a SHA-256 of the source and of the options that change
+// what the Optimizer produces, and is only loaded while that still
+// matches. Every binding the Resolver sets is stored, except Cells, which
+// are looked up again by name, so a loaded program runs as it is.
+class AstCache {
+    // Changed whenever the format or the tree it holds changes.
+    static final int VERSION = 1;
+
+    private static final byte[] MAGIC = {'M', 'B', 'C'};
+
+    private static final TokenType[] TYPES = TokenType.values();
+
+    // Node tags. 0 stands for a missing node.
+    private static final int ASSIGN = 1;
+    private static final int BINARY = 2;
+    private static final int CALL = 3;
+    private static final int GROUPING = 4;
+    private static final int LITERAL = 5;
+    private static final int LOGICAL = 6;
+    private static final int UNARY = 7;
+    private static final int VARIABLE = 8;
+
+    private static final int BLOCK = 1;
+    private static final int EXPRESSION = 2;
+    private static final int FUNCTION = 3;
+    private static final int IF = 4;
+    private static final int NAMESPACE = 5;
+    private static final int RETURN = 6;
+    private static final int VAR = 7;
+
+    // Literal value tags.
+    private static final int NULL = 0;
+    private static final int FALSE = 1;
+    private static final int TRUE = 2;
+    private static final int INT = 3;
+    private static final int DOUBLE = 4;
+    private static final int STRING = 5;
+    private static final int BIN = 6;
+    private static final int HEX = 7;
+
+    private final Path path;
+    private final byte[] key;
+
+    private String tokens;
+    private List<Stmt> statements;
+
+    AstCache(Path script, String source) {
+        String name = script.getFileName().toString();
+        this.path = script.resolveSibling(
+                name.endsWith(".mb") ? name + "c" : name + ".mbc");
+        this.key = key(source);
+    }
+
+    private static byte[] key(String source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(source.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte)VERSION);
+            digest.update((byte)(MBasic.useOptimizer ? 1 : 0));
+            digest.update((byte)(MBasic.useInlining ? 1 : 0));
+            digest.update((byte)(MBasic.useCse ? 1 : 0));
+            return digest.digest();
+        } catch (NoSuchAlgorithmException error) {
+            // Every Java platform has SHA-256.
+            throw new IllegalStateException(error);
+        }
+    }
+
+    // Reads the cached program, binding its globals in globals. Returns
+    // false if there is none for this source, or it cannot be read.
+    boolean load(Environment globals) {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(path);
+        } catch (IOException error) {
+            return false;
+        }
+
+        int header = MAGIC.length + key.length;
+        if (bytes.length < header
+                || !Arrays.equals(bytes, 0, MAGIC.length, MAGIC, 0, MAGIC.length)
+                || !Arrays.equals(bytes, MAGIC.length, header,
+                        key, 0, key.length)) {
+            return false;
+        }
+
+        try {
+            Reader reader = new Reader(bytes, header, globals);
+            tokens = reader.text();
+            statements = reader.statements();
+            return reader.position == bytes.length;
+        } catch (RuntimeException error) {
+            // Truncated or otherwise damaged.
+            return false;
+        }
+    }
+
+    String tokens() {
+        return tokens;
+    }
+
+    List<Stmt> statements() {
+        return statements;
+    }
+
+    // Writes the program to the cache. Written to a temporary file first,
+    // so that a run reading the cache never sees half of one. Failing to
+    // write it only means the next run parses the script again.
+    void save(String tokens, List<Stmt> statements) {
+        Writer writer = new Writer();
+        writer.bytes.write(MAGIC, 0, MAGIC.length);
+        writer.bytes.write(key, 0, key.length);
+        try {
+            writer.text(tokens);
+            writer.statements(statements);
+        } catch (IllegalArgumentException error) {
+            // A literal of a type the format has no tag for.
+            return;
+        }
+
+        Path temporary = path.resolveSibling(path.getFileName() + "."
+                + ProcessHandle.current().pid() + ".tmp");
+        try {
+            Files.write(temporary, writer.bytes.toByteArray());
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException error) {
+            try {
+                Files.deleteIfExists(temporary);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // Numbers are written as varints, and each distinct string once: a
+    // string's index is followed by its bytes the first time it appears.
+    private static class Writer {
+        final Bytes bytes = new Bytes();
+        private final Map<String, Integer> strings = new HashMap<>();
+
+        void statements(List<Stmt> statements) {
+            number(statements.size());
+            for (Stmt statement : statements) statement(statement);
+        }
+
+        void statement(Stmt stmt) {
+            if (stmt == null) {
+                number(0);
+            } else if (stmt instanceof Stmt.Block) {
+                Stmt.Block block = (Stmt.Block)stmt;
+                number(BLOCK);
+                statements(block.statements);
+                number(block.slotCount);
+                flag(block.elided);
+            } else if (stmt instanceof Stmt.Expression) {
+                number(EXPRESSION);
+                expression(((Stmt.Expression)stmt).expression);
+            } else if (stmt instanceof Stmt.Function) {
+                Stmt.Function function = (Stmt.Function)stmt;
+                number(FUNCTION);
+                token(function.name);
+                number(function.params.size());
+                for (Token param : function.params) token(param);
+                statements(function.body);
+                number(function.slot);
+                number(function.slotCount);
+                number(function.captures.size());
+                for (Capture capture : function.captures) {
+                    number(capture.depth);
+                    number(capture.slot);
+                    flag(capture.self);
+                }
+                flag(function.boxed);
+                number(function.boxedParams.size());
+                for (int slot : function.boxedParams) number(slot);
+                flag(function.rebound);
+            } else if (stmt instanceof Stmt.If) {
+                Stmt.If ifStmt = (Stmt.If)stmt;
+                number(IF);
+                expression(ifStmt.condition);
+                statement(ifStmt.thenBranch);
+                statement(ifStmt.elseBranch);
+            } else if (stmt instanceof Stmt.Namespace) {
+                Stmt.Namespace namespace = (Stmt.Namespace)stmt;
+                number(NAMESPACE);
+                token(namespace.identifier);
+                statements(namespace.statements);
+            } else if (stmt instanceof Stmt.Return) {
+                Stmt.Return returnStmt = (Stmt.Return)stmt;
+                number(RETURN);
+                token(returnStmt.keyword);
+                expression(returnStmt.value);
+            } else {
+                Stmt.Var var = (Stmt.Var)stmt;
+                number(VAR);
+                token(var.type);
+                token(var.name);
+                expression(var.initializer);
+                number(var.slot);
+                flag(var.boxed);
+                flag(var.assigned);
+            }
+        }
+
+        void expression(Expr expr) {
+            if (expr == null) {
+                number(0);
+            } else if (expr instanceof Expr.Assign) {
+                Expr.Assign assign = (Expr.Assign)expr;
+                number(ASSIGN);
+                token(assign.name);
+                expression(assign.value);
+                number(assign.depth);
+                number(assign.slot);
+                number(assign.capture);
+                flag(assign.boxed);
+            } else if (expr instanceof Expr.Binary) {
+                Expr.Binary binary = (Expr.Binary)expr;
+                number(BINARY);
+                expression(binary.left);
+                token(binary.operator);
+                expression(binary.right);
+            } else if (expr instanceof Expr.Call) {
+                Expr.Call call = (Expr.Call)expr;
+                number(CALL);
+                expression(call.callee);
+                token(call.paren);
+                number(call.arguments.size());
+                for (Expr argument : call.arguments) expression(argument);
+                flag(call.isTailCall);
+            } else if (expr instanceof Expr.Grouping) {
+                number(GROUPING);
+                expression(((Expr.Grouping)expr).expression);
+            } else if (expr instanceof Expr.Literal) {
+                number(LITERAL);
+                value(((Expr.Literal)expr).value);
+            } else if (expr instanceof Expr.Logical) {
+                Expr.Logical logical = (Expr.Logical)expr;
+                number(LOGICAL);
+                expression(logical.left);
+                token(logical.operator);
+                expression(logical.right);
+            } else if (expr instanceof Expr.Unary) {
+                Expr.Unary unary = (Expr.Unary)expr;
+                number(UNARY);
+                token(unary.operator);
+                expression(unary.right);
+            } else {
+                Expr.Variable variable = (Expr.Variable)expr;
+                number(VARIABLE);
+                token(variable.name);
+                number(variable.depth);
+                number(variable.slot);
+                number(variable.capture);
+                flag(variable.boxed);
+                flag(variable.assigned);
+            }
+        }
+
+        // A token's type is written one higher, so that 0 is no token.
+        void token(Token token) {
+            if (token == null) {
+                number(0);
+                return;
+            }
+
+            number(token.type.ordinal() + 1);
+            string(token.lexeme);
+            value(token.literal);
+            number(token.line);
+        }
+
+        void value(Object value) {
+            if (value == null) {
+                number(NULL);
+            } else if (value instanceof Boolean) {
+                number((Boolean)value ? TRUE : FALSE);
+            } else if (value instanceof Integer) {
+                number(INT);
+                number((Integer)value);
+            } else if (value instanceof Double) {
+                number(DOUBLE);
+                number(Double.doubleToRawLongBits((Double)value));
+            } else if (value instanceof String) {
+                number(STRING);
+                string((String)value);
+            } else if (value instanceof Bin) {
+                number(BIN);
+                number(((Bin)value).value);
+            } else if (value instanceof Hex) {
+                number(HEX);
+                number(((Hex)value).value);
+            } else {
+                throw new IllegalArgumentException(
+                        "Cannot cache a " + value.getClass().getName() + ".");
+            }
+        }
+
+        // Strings may be null, which is index 0.
+        void string(String string) {
+            if (string == null) {
+                number(0);
+                return;
+            }
+
+            Integer index = strings.get(string);
+            if (index != null) {
+                number(index);
+                return;
+            }
+
+            strings.put(string, strings.size() + 1);
+            number(strings.size());
+            text(string);
+        }
+
+        void text(String text) {
+            byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+            number(utf8.length);
+            bytes.write(utf8, 0, utf8.length);
+        }
+
+        void flag(boolean flag) {
+            bytes.write(flag ? 1 : 0);
+        }
+
+        // Zigzag encoded, so the -1s the Resolver uses stay one byte.
+        void number(long number) {
+            long bits = (number << 1) ^ (number >> 63);
+            while ((bits & ~0x7FL) != 0) {
+                bytes.write((int)(bits & 0x7F) | 0x80);
+                bits >>>= 7;
+            }
+            bytes.write((int)bits);
+        }
+    }
+
+    // ByteArrayOutputStream without the synchronization.
+    private static class Bytes {
+        private byte[] buffer = new byte[8192];
+        private int size = 0;
+
+        void write(int b) {
+            if (size == buffer.length) buffer = Arrays.copyOf(buffer, size * 2);
+            buffer[size++] = (byte)b;
+        }
+
+        void write(byte[] bytes, int offset, int length) {
+            if (size + length > buffer.length) {
+                buffer = Arrays.copyOf(buffer,
+                        Math.max(size + length, buffer.length * 2));
+            }
+            System.arraycopy(bytes, offset, buffer, size, length);
+            size += length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, size);
+        }
+    }
+
+    // Reads what Writer wrote. A global name is bound to its Cell in
+    // globals, as the Resolver would bind it.
+    private static class Reader {
+        private final byte[] bytes;
+        private final Environment globals;
+        private final List<String> strings = new ArrayList<>();
+        int position;
+
+        Reader(byte[] bytes, int position, Environment globals) {
+            this.bytes = bytes;
+            this.position = position;
+            this.globals = globals;
+            strings.add(null);
+        }
+
+        List<Stmt> statements() {
+            int count = (int)number();
+            List<Stmt> statements = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) statements.add(statement());
+            return statements;
+        }
+
+        Stmt statement() {
+            switch ((int)number()) {
+                case 0:
+                    return null;
+                case BLOCK: {
+                    Stmt.Block block = new Stmt.Block(statements());
+                    block.slotCount = (int)number();
+                    block.elided = flag();
+                    return block;
+                }
+                case EXPRESSION:
+                    return new Stmt.Expression(expression());
+                case FUNCTION: {
+                    Token name = token();
+                    int count = (int)number();
+                    List<Token> params = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) params.add(token());
+
+                    Stmt.Function function =
+                            new Stmt.Function(name, params, statements());
+                    function.slot = (int)number();
+                    if (function.slot == -1) {
+                        function.cell = globals.cell(name.lexeme);
+                    }
+                    function.slotCount = (int)number();
+                    count = (int)number();
+                    for (int i = 0; i < count; i++) {
+                        function.captures.add(new Capture((int)number(),
+                                (int)number(), flag()));
+                    }
+                    function.boxed = flag();
+                    count = (int)number();
+                    for (int i = 0; i < count; i++) {
+                        function.boxedParams.add((int)number());
+                    }
+                    function.rebound = flag();
+                    return function;
+                }
+                case IF:
+                    return new Stmt.If(expression(), statement(), statement());
+                case NAMESPACE:
+                    return new Stmt.Namespace(token(), statements());
+                case RETURN:
+                    return new Stmt.Return(token(), expression());
+                case VAR: {
+                    Stmt.Var var = new Stmt.Var(token(), token(), expression());
+                    var.slot = (int)number();
+                    if (var.slot == -1) var.cell = globals.cell(var.name.lexeme);
+                    var.boxed = flag();
+                    var.assigned = flag();
+                    return var;
+                }
+                default:
+                    throw new IllegalStateException("Unknown statement tag.");
+            }
+        }
+
+        Expr expression() {
+            switch ((int)number()) {
+                case 0:
+                    return null;
+                case ASSIGN: {
+                    Expr.Assign assign = new Expr.Assign(token(), expression());
+                    assign.depth = (int)number();
+                    assign.slot = (int)number();
+                    assign.capture = (int)number();
+                    assign.boxed = flag();
+                    if (assign.depth == -1 && assign.capture == -1) {
+                        assign.cell = globals.cell(assign.name.lexeme);
+                    }
+                    return assign;
+                }
+                case BINARY:
+                    return new Expr.Binary(expression(), token(), expression());
+                case CALL: {
+                    Expr callee = expression();
+                    Token paren = token();
+                    int count = (int)number();
+                    List<Expr> arguments = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) arguments.add(expression());
+
+                    Expr.Call call = new Expr.Call(callee, paren, arguments);
+                    call.isTailCall = flag();
+                    return call;
+                }
+                case GROUPING:
+                    return new Expr.Grouping(expression());
+                case LITERAL:
+                    return new Expr.Literal(value());
+                case LOGICAL:
+                    return new Expr.Logical(expression(), token(), expression());
+                case UNARY:
+                    return new Expr.Unary(token(), expression());
+                case VARIABLE: {
+                    Expr.Variable variable = new Expr.Variable(token());
+                    variable.depth = (int)number();
+                    variable.slot = (int)number();
+                    variable.capture = (int)number();
+                    variable.boxed = flag();
+                    variable.assigned = flag();
+                    if (variable.depth == -1 && variable.capture == -1) {
+                        variable.cell = globals.cell(variable.name.lexeme);
+                    }
+                    return variable;
+                }
+                default:
+                    throw new IllegalStateException("Unknown expression tag.");
+            }
+        }
+
+        Token token() {
+            int type = (int)number();
+            if (type == 0) return null;
+
+            return new Token(TYPES[type - 1], string(), value(), (int)number());
+        }
+
+        Object value() {
+            switch ((int)number()) {
+                case NULL: return null;
+                case FALSE: return false;
+                case TRUE: return true;
+                case INT: return (int)number();
+                case DOUBLE: return Double.longBitsToDouble(number());
+                case STRING: return string();
+                case BIN: return new Bin(number());
+                case HEX: return new Hex(number());
+                default:
+                    throw new IllegalStateException("Unknown value tag.");
+            }
+        }
+
+        String string() {
+            int index = (int)number();
+            if (index < strings.size()) return strings.get(index);
+
+            String string = text();
+            strings.add(string);
+            return string;
+        }
+
+        String text() {
+            int length = (int)number();
+            String text = new String(bytes, position, length,
+                    StandardCharsets.UTF_8);
+            position += length;
+            return text;
+        }
+
+        boolean flag() {
+            return bytes[position++] != 0;
+        }
+
+        long number() {
+            long bits = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = bytes[position++];
+                bits |= (long)(b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return (bits >>> 1) ^ -(bits & 1);
+        }
+    }
+}
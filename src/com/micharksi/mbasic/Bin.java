@@ -0,0 +1,28 @@
+package com.micharksi.mbasic;
+
+// A binary value. The Tokenizer parses BIN literals into these, and the
+// digits are only produced again when the value is printed.
+final class Bin {
+    final long value;
+
+    Bin(long value) {
+        this.value = value;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Bin && ((Bin)other).value == value;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(value);
+    }
+
+    @Override
+    public String toString() {
+        String digits = Long.toString(value, 2);
+        if (value < 0) return "-0b" + digits.substring(1);
+        return "0b" + digits;
+    }
+}
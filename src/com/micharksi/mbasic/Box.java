@@ -0,0 +1,17 @@
+package com.micharksi.mbasic;
+
+// Holds a local that a closure captures and something assigns, so the
+// frame and every closure that captured it share one value.
+final class Box {
+    Object value;
+
+    Box(Object value) {
+        this.value = value;
+    }
+
+
+    @Override
+    public String toString() {
+        return "box(" + value + ")";
+    }
+}
@@ -0,0 +1,17 @@
+package com.micharksi.mbasic;
+
+// Where a new closure finds one of its free variables: a slot in the
+// frame it is created in (depth >= 0), one of the enclosing function's own
+// captures (depth of -1, index in slot), or, when self is set, the new
+// function itself. Boxed variables are copied as their Box.
+final class Capture {
+    final int depth;
+    final int slot;
+    final boolean self;
+
+    Capture(int depth, int slot, boolean self) {
+        this.depth = depth;
+        this.slot = slot;
+        this.self = self;
+    }
+}
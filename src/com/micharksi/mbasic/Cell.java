@@ -0,0 +1,36 @@
+package com.micharksi.mbasic;
+
+// The binding of one global variable. The Resolver links every global
+// reference and declaration to its Cell, so reading a global is a field
+// load rather than a map lookup. A Cell exists once any code mentions the
+// name, and is defined when a declaration of it runs.
+final class Cell {
+    Object value;
+    boolean defined;
+
+    Object get(Token name) {
+        if (defined) return value;
+
+        throw new RuntimeError(name,
+                "Undefined variable '" + name.lexeme + "'.");
+    }
+
+    void assign(Token name, Object value) {
+        if (!defined) {
+            throw new RuntimeError(name,
+                    "Undefined variable '" + name.lexeme + "'.");
+        }
+
+        this.value = value;
+    }
+
+    void define(Object value) {
+        this.value = value;
+        defined = true;
+    }
+
+    @Override
+    public String toString() {
+        return defined ? String.valueOf(value) : "<undefined>";
+    }
+}
@@ -0,0 +1,31 @@
+package com.micharksi.mbasic;
+
+import java.util.List;
+
+// A compiled function body, or the top-level script when name is null.
+final class Chunk {
+    final String name;
+    final int arity;
+    final int slotCount;
+
+    final int[] code;
+    final Object[] constants;
+
+    // The most operand stack slots the code can use at once.
+    final int maxStack;
+
+    // What a CLOSURE of this chunk captures.
+    final List<Capture> captures;
+
+    Chunk(String name, int arity, int slotCount,
+          int[] code, Object[] constants, int maxStack,
+          List<Capture> captures) {
+        this.name = name;
+        this.arity = arity;
+        this.slotCount = slotCount;
+        this.code = code;
+        this.constants = constants;
+        this.maxStack = maxStack;
+        this.captures = captures;
+    }
+}
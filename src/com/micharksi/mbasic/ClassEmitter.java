@@ -0,0 +1,486 @@
+package com.micharksi.mbasic;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Writes the subset of the JVM class file format that generated code
+// needs. Classes are emitted as version 49 so that methods do not need a
+// StackMapTable: the verifier infers local and stack types itself.
+final class ClassEmitter {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    // Opcodes, named as in the JVM specification.
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC = 0x12;
+    static final int LDC_W = 0x13;
+    static final int LDC2_W = 0x14;
+    static final int ILOAD = 0x15;
+    static final int ALOAD = 0x19;
+    static final int AALOAD = 0x32;
+    static final int ISTORE = 0x36;
+    static final int ASTORE = 0x3A;
+    static final int AASTORE = 0x53;
+    static final int POP = 0x57;
+    static final int DUP = 0x59;
+    static final int DUP_X1 = 0x5A;
+    static final int SWAP = 0x5F;
+    static final int IADD = 0x60;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9A;
+    static final int IF_ICMPNE = 0xA0;
+    static final int IF_ACMPEQ = 0xA5;
+    static final int IF_ACMPNE = 0xA6;
+    static final int GOTO = 0xA7;
+    static final int IRETURN = 0xAC;
+    static final int ARETURN = 0xB0;
+    static final int RETURN = 0xB1;
+    static final int GETSTATIC = 0xB2;
+    static final int PUTSTATIC = 0xB3;
+    static final int GETFIELD = 0xB4;
+    static final int PUTFIELD = 0xB5;
+    static final int INVOKEVIRTUAL = 0xB6;
+    static final int INVOKESPECIAL = 0xB7;
+    static final int INVOKESTATIC = 0xB8;
+    static final int INVOKEINTERFACE = 0xB9;
+    static final int NEW = 0xBB;
+    static final int ANEWARRAY = 0xBD;
+    static final int ATHROW = 0xBF;
+    static final int CHECKCAST = 0xC0;
+    static final int INSTANCEOF = 0xC1;
+    static final int WIDE = 0xC4;
+    static final int IFNULL = 0xC6;
+    static final int IFNONNULL = 0xC7;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    final String name;
+    private final int access;
+    private final int thisClass;
+    private final int superClass;
+    private final int[] interfaces;
+
+    private final List<int[]> fields = new ArrayList<>();
+    private final List<Method> methods = new ArrayList<>();
+
+    ClassEmitter(int access, String name, String superName,
+                 String... interfaces) {
+        this.access = access;
+        this.name = name;
+        this.thisClass = classRef(name);
+        this.superClass = classRef(superName);
+        this.interfaces = new int[interfaces.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            this.interfaces[i] = classRef(interfaces[i]);
+        }
+    }
+
+    void field(int access, String name, String descriptor) {
+        fields.add(new int[] { access, utf8(name), utf8(descriptor) });
+    }
+
+    Method method(int access, String name, String descriptor) {
+        Method method = new Method(access, name, descriptor);
+        methods.add(method);
+        return method;
+    }
+
+    byte[] toBytes() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+
+            int code = utf8("Code");
+
+            out.writeShort(poolCount);
+            pool.flush();
+            poolBytes.writeTo(out);
+
+            out.writeShort(access);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.length);
+            for (int index : interfaces) out.writeShort(index);
+
+            out.writeShort(fields.size());
+            for (int[] field : fields) {
+                out.writeShort(field[0]);
+                out.writeShort(field[1]);
+                out.writeShort(field[2]);
+                out.writeShort(0);
+            }
+
+            out.writeShort(methods.size());
+            for (Method method : methods) {
+                method.write(out, code);
+            }
+
+            out.writeShort(0);
+            return bytes.toByteArray();
+        } catch (IOException error) {
+            throw new IllegalStateException(error);
+        }
+    }
+
+    // Constant pool. Entries are shared by content.
+
+    // The number of entries so far, which must stay below 65536.
+    int poolSize() {
+        return poolCount;
+    }
+
+    int utf8(String value) {
+        return entry("U" + value, 1, () -> {
+            pool.writeByte(1);
+            pool.writeUTF(value);
+        });
+    }
+
+    int classRef(String internalName) {
+        int name = utf8(internalName);
+        return entry("C" + internalName, 1, () -> {
+            pool.writeByte(7);
+            pool.writeShort(name);
+        });
+    }
+
+    int string(String value) {
+        int utf8 = utf8(value);
+        return entry("S" + value, 1, () -> {
+            pool.writeByte(8);
+            pool.writeShort(utf8);
+        });
+    }
+
+    int integer(int value) {
+        return entry("I" + value, 1, () -> {
+            pool.writeByte(3);
+            pool.writeInt(value);
+        });
+    }
+
+    int longConstant(long value) {
+        return entry("J" + value, 2, () -> {
+            pool.writeByte(5);
+            pool.writeLong(value);
+        });
+    }
+
+    int doubleConstant(double value) {
+        return entry("D" + Double.doubleToRawLongBits(value), 2, () -> {
+            pool.writeByte(6);
+            pool.writeDouble(value);
+        });
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(9, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(10, owner, name, descriptor);
+    }
+
+    int interfaceMethodRef(String owner, String name, String descriptor) {
+        return memberRef(11, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name,
+                          String descriptor) {
+        int ownerIndex = classRef(owner);
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        int nameAndType = entry("N" + name + " " + descriptor, 1, () -> {
+            pool.writeByte(12);
+            pool.writeShort(nameIndex);
+            pool.writeShort(descriptorIndex);
+        });
+        return entry(tag + owner + "." + name + descriptor, 1, () -> {
+            pool.writeByte(tag);
+            pool.writeShort(ownerIndex);
+            pool.writeShort(nameAndType);
+        });
+    }
+
+    private interface PoolWriter {
+        void write() throws IOException;
+    }
+
+    private int entry(String key, int size, PoolWriter writer) {
+        Integer existing = poolIndex.get(key);
+        if (existing != null) return existing;
+
+        try {
+            writer.write();
+        } catch (IOException error) {
+            throw new IllegalStateException(error);
+        }
+
+        int index = poolCount;
+        poolCount += size;
+        if (poolCount > 0xFFFF) {
+            throw new IllegalStateException("Constant pool overflow.");
+        }
+        poolIndex.put(key, index);
+        return index;
+    }
+
+    // Number of argument slots and return slots a descriptor describes.
+    private static int[] slots(String descriptor) {
+        int arguments = 0;
+        int i = 1;
+        while (descriptor.charAt(i) != ')') {
+            char c = descriptor.charAt(i);
+            if (c == 'J' || c == 'D') {
+                arguments += 2;
+                i++;
+            } else {
+                arguments++;
+                while (descriptor.charAt(i) == '[') i++;
+                if (descriptor.charAt(i) == 'L') {
+                    i = descriptor.indexOf(';', i);
+                }
+                i++;
+            }
+        }
+
+        char result = descriptor.charAt(i + 1);
+        int returns = result == 'V' ? 0 : result == 'J' || result == 'D' ? 2 : 1;
+        return new int[] { arguments, returns };
+    }
+
+    static final class Label {
+        private int position = -1;
+        private final List<Integer> fixups = new ArrayList<>();
+    }
+
+    final class Method {
+        private final int access;
+        private final int nameIndex;
+        private final int descriptorIndex;
+
+        private byte[] code = new byte[256];
+        private int length = 0;
+
+        private int stack = 0;
+        private int maxStack = 0;
+        private int maxLocals;
+
+        private Method(int access, String name, String descriptor) {
+            this.access = access;
+            this.nameIndex = utf8(name);
+            this.descriptorIndex = utf8(descriptor);
+            this.maxLocals = slots(descriptor)[0]
+                    + ((access & ACC_STATIC) != 0 ? 0 : 1);
+        }
+
+        int length() {
+            return length;
+        }
+
+        // Records a local variable slot as used.
+        void local(int index) {
+            if (index + 1 > maxLocals) maxLocals = index + 1;
+        }
+
+        // The operand stack depth at this point, for code that merges
+        // branches and has to restore it.
+        int stack() {
+            return stack;
+        }
+
+        void stack(int depth) {
+            stack = depth;
+        }
+
+        void op(int opcode, int stackEffect) {
+            u1(opcode);
+            adjust(stackEffect);
+        }
+
+        void aload(int index) {
+            variable(ALOAD, index, 1);
+        }
+
+        void astore(int index) {
+            variable(ASTORE, index, -1);
+        }
+
+        void iload(int index) {
+            variable(ILOAD, index, 1);
+        }
+
+        void istore(int index) {
+            variable(ISTORE, index, -1);
+        }
+
+        private void variable(int opcode, int index, int stackEffect) {
+            local(index);
+            if (index > 0xFF) {
+                u1(WIDE);
+                u1(opcode);
+                u2(index);
+            } else {
+                u1(opcode);
+                u1(index);
+            }
+            adjust(stackEffect);
+        }
+
+        void iconst(int value) {
+            if (value >= -1 && value <= 5) {
+                u1(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                u1(BIPUSH);
+                u1(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                u1(SIPUSH);
+                u2(value);
+            } else {
+                ldc(integer(value));
+                return;
+            }
+            adjust(1);
+        }
+
+        void ldc(int index) {
+            if (index > 0xFF) {
+                u1(LDC_W);
+                u2(index);
+            } else {
+                u1(LDC);
+                u1(index);
+            }
+            adjust(1);
+        }
+
+        // Pushes a long or double constant.
+        void ldc2(int index) {
+            u1(LDC2_W);
+            u2(index);
+            adjust(2);
+        }
+
+        void type(int opcode, String internalName) {
+            u1(opcode);
+            u2(classRef(internalName));
+            adjust(opcode == NEW ? 1 : 0);
+        }
+
+        void field(int opcode, String owner, String name, String descriptor) {
+            u1(opcode);
+            u2(fieldRef(owner, name, descriptor));
+
+            int size = descriptor.equals("J") || descriptor.equals("D") ? 2 : 1;
+            switch (opcode) {
+                case GETSTATIC: adjust(size); break;
+                case PUTSTATIC: adjust(-size); break;
+                case GETFIELD: adjust(size - 1); break;
+                default: adjust(-size - 1); break;
+            }
+        }
+
+        void invoke(int opcode, String owner, String name, String descriptor) {
+            int[] slots = slots(descriptor);
+            int receiver = opcode == INVOKESTATIC ? 0 : 1;
+
+            u1(opcode);
+            if (opcode == INVOKEINTERFACE) {
+                u2(interfaceMethodRef(owner, name, descriptor));
+                u1(slots[0] + 1);
+                u1(0);
+            } else {
+                u2(methodRef(owner, name, descriptor));
+            }
+            adjust(slots[1] - slots[0] - receiver);
+        }
+
+        void jump(int opcode, Label target) {
+            int start = length;
+            u1(opcode);
+            switch (opcode) {
+                case GOTO: break;
+                case IF_ACMPEQ: case IF_ACMPNE: case IF_ICMPNE:
+                    adjust(-2);
+                    break;
+                default:
+                    adjust(-1);
+                    break;
+            }
+
+            if (target.position != -1) {
+                u2(target.position - start);
+            } else {
+                target.fixups.add(start);
+                u2(0);
+            }
+        }
+
+        void bind(Label label) {
+            label.position = length;
+            for (int start : label.fixups) {
+                int offset = length - start;
+                code[start + 1] = (byte)(offset >> 8);
+                code[start + 2] = (byte)offset;
+            }
+            label.fixups.clear();
+        }
+
+        private void adjust(int stackEffect) {
+            stack += stackEffect;
+            if (stack > maxStack) maxStack = stack;
+        }
+
+        private void u1(int value) {
+            if (length == code.length) {
+                code = Arrays.copyOf(code, length * 2);
+            }
+            code[length++] = (byte)value;
+        }
+
+        private void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+
+        private void write(DataOutputStream out, int codeName)
+                throws IOException {
+            if (length > 0xFFFF) {
+                throw new IllegalStateException("Method too large.");
+            }
+
+            out.writeShort(access);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+            out.writeShort(1);
+
+            out.writeShort(codeName);
+            out.writeInt(12 + length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(length);
+            out.write(code, 0, length);
+            out.writeShort(0);
+            out.writeShort(0);
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package com.micharksi.mbasic;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Finds pure expressions that a function body computes more than once and
+// computes each once. An expression is pure when it reads only literals
+// and locals nothing assigns, through operators and pure builtins, so every
+// evaluation in the same frame gives the same value or fails the same way.
+// The first evaluation that always runs stores its value in a synthetic
+// local, and evaluations after it read that instead. Earlier ones, and
+// the first itself, run where they did, so the program still fails at the
+// same point. A block that declares names is a scope of its own, and
+// nested functions are left to their own pass.
+class CommonSubexpressions {
+    // The builtins that may be called from a pure expression.
+    private final Set<String> pureGlobals;
+
+    // Numbers the synthetic locals. Names start with '$', which the
+    // Tokenizer never puts in an identifier.
+    private int next = 0;
+
+    CommonSubexpressions(Set<String> pureGlobals) {
+        this.pureGlobals = pureGlobals;
+    }
+
+    // Returns the statements of a body or block, with a let declaring each
+    // synthetic local it needs in front. line is used for those names.
+    List<Stmt> eliminate(List<Stmt> statements, int line) {
+        return new Scope(line).eliminate(statements);
+    }
+
+    // An expression computed more than once. first is its first
+    // evaluation that always runs, and uses counts those after it.
+    private static class Candidate {
+        Expr first;
+        int uses;
+        Token local;
+    }
+
+    private class Scope {
+        private final int line;
+        private final Map<String, Candidate> candidates =
+                new LinkedHashMap<>();
+        private final Map<Expr, String> keys = new IdentityHashMap<>();
+
+        Scope(int line) {
+            this.line = line;
+        }
+
+        List<Stmt> eliminate(List<Stmt> statements) {
+            for (Stmt statement : statements) {
+                count(statement, false);
+            }
+
+            List<Stmt> result = new ArrayList<>();
+            for (Candidate candidate : candidates.values()) {
+                if (candidate.uses == 0) continue;
+
+                candidate.local = new Token(TokenType.IDENTIFIER,
+                        "$" + next++, null, line);
+                result.add(new Stmt.Var(null, candidate.local, null));
+            }
+
+            // Blocks with scopes of their own may change even when nothing
+            // here is reused.
+            boolean changed = !result.isEmpty();
+            for (Stmt statement : statements) {
+                Stmt rewritten = rewrite(statement);
+                result.add(rewritten);
+                changed |= rewritten != statement;
+            }
+
+            return changed ? result : statements;
+        }
+
+        // Walks the statements in the order they run. conditional is set
+        // inside code that may not run every time the statement does.
+        private void count(Stmt stmt, boolean conditional) {
+            if (stmt instanceof Stmt.Expression) {
+                count(((Stmt.Expression)stmt).expression, conditional);
+            } else if (stmt instanceof Stmt.Return) {
+                Expr value = ((Stmt.Return)stmt).value;
+                if (value != null) count(value, conditional);
+            } else if (stmt instanceof Stmt.Var) {
+                Expr initializer = ((Stmt.Var)stmt).initializer;
+                if (initializer != null) count(initializer, conditional);
+            } else if (stmt instanceof Stmt.If) {
+                Stmt.If ifStmt = (Stmt.If)stmt;
+                count(ifStmt.condition, conditional);
+                count(ifStmt.thenBranch, true);
+                if (ifStmt.elseBranch != null) count(ifStmt.elseBranch, true);
+            } else if (stmt instanceof Stmt.Block) {
+                List<Stmt> statements = ((Stmt.Block)stmt).statements;
+                if (Resolver.declaresAny(statements)) return;
+
+                for (Stmt statement : statements) {
+                    count(statement, conditional);
+                }
+            }
+        }
+
+        private void count(Expr expr, boolean conditional) {
+            String key = operation(expr);
+            if (key != null) {
+                Candidate candidate = candidates.get(key);
+                if (candidate == null) {
+                    candidate = new Candidate();
+                    candidates.put(key, candidate);
+                }
+
+                // Everything after the first is replaced whole, so what
+                // it contains is never evaluated.
+                if (candidate.first != null) {
+                    candidate.uses++;
+                    return;
+                }
+                if (!conditional) candidate.first = expr;
+            }
+
+            if (expr instanceof Expr.Assign) {
+                count(((Expr.Assign)expr).value, conditional);
+            } else if (expr instanceof Expr.Binary) {
+                count(((Expr.Binary)expr).left, conditional);
+                count(((Expr.Binary)expr).right, conditional);
+            } else if (expr instanceof Expr.Call) {
+                count(((Expr.Call)expr).callee, conditional);
+                for (Expr argument : ((Expr.Call)expr).arguments) {
+                    count(argument, conditional);
+                }
+            } else if (expr instanceof Expr.Grouping) {
+                count(((Expr.Grouping)expr).expression, conditional);
+            } else if (expr instanceof Expr.Logical) {
+                count(((Expr.Logical)expr).left, conditional);
+                count(((Expr.Logical)expr).right, true);
+            } else if (expr instanceof Expr.Unary) {
+                count(((Expr.Unary)expr).right, conditional);
+            }
+        }
+
+        private Stmt rewrite(Stmt stmt) {
+            if (stmt instanceof Stmt.Expression) {
+                Expr expression = ((Stmt.Expression)stmt).expression;
+                Expr rewritten = rewrite(expression);
+                if (rewritten == expression) return stmt;
+                return new Stmt.Expression(rewritten);
+            }
+
+            if (stmt instanceof Stmt.Return) {
+                Stmt.Return returnStmt = (Stmt.Return)stmt;
+                if (returnStmt.value == null) return stmt;
+
+                Expr value = rewrite(returnStmt.value);
+                if (value == returnStmt.value) return stmt;
+                return new Stmt.Return(returnStmt.keyword, value);
+            }
+
+            if (stmt instanceof Stmt.Var) {
+                Stmt.Var var = (Stmt.Var)stmt;
+                if (var.initializer == null) return stmt;
+
+                Expr initializer = rewrite(var.initializer);
+                if (initializer == var.initializer) return stmt;
+                return new Stmt.Var(var.type, var.name, initializer);
+            }
+
+            if (stmt instanceof Stmt.If) {
+                Stmt.If ifStmt = (Stmt.If)stmt;
+                Expr condition = rewrite(ifStmt.condition);
+                Stmt thenBranch = rewrite(ifStmt.thenBranch);
+                Stmt elseBranch = ifStmt.elseBranch == null
+                        ? null : rewrite(ifStmt.elseBranch);
+
+                if (condition == ifStmt.condition
+                        && thenBranch == ifStmt.thenBranch
+                        && elseBranch == ifStmt.elseBranch) {
+                    return stmt;
+                }
+                return new Stmt.If(condition, thenBranch, elseBranch);
+            }
+
+            if (stmt instanceof Stmt.Block) {
+                List<Stmt> statements = ((Stmt.Block)stmt).statements;
+                List<Stmt> rewritten;
+                if (Resolver.declaresAny(statements)) {
+                    rewritten = new Scope(line).eliminate(statements);
+                } else {
+                    rewritten = rewriteAll(statements);
+                }
+
+                if (rewritten == statements) return stmt;
+                return new Stmt.Block(rewritten);
+            }
+
+            return stmt;
+        }
+
+        private List<Stmt> rewriteAll(List<Stmt> statements) {
+            List<Stmt> result = new ArrayList<>(statements.size());
+            boolean changed = false;
+            for (Stmt statement : statements) {
+                Stmt rewritten = rewrite(statement);
+                result.add(rewritten);
+                changed |= rewritten != statement;
+            }
+
+            return changed ? result : statements;
+        }
+
+        // Mirrors count(), so first and the uses after it are met in the
+        // same order.
+        private Expr rewrite(Expr expr) {
+            String key = operation(expr);
+            Candidate candidate = key != null ? candidates.get(key) : null;
+            if (candidate != null && candidate.local != null) {
+                if (candidate.first == expr) {
+                    candidate.first = null;
+                    return new Expr.Assign(candidate.local,
+                            rewriteOperands(expr));
+                }
+                if (candidate.first == null) {
+                    return new Expr.Variable(candidate.local);
+                }
+            }
+
+            return rewriteOperands(expr);
+        }
+
+        private Expr rewriteOperands(Expr expr) {
+            if (expr instanceof Expr.Assign) {
+                Expr.Assign assign = (Expr.Assign)expr;
+                Expr value = rewrite(assign.value);
+                if (value == assign.value) return expr;
+                return new Expr.Assign(assign.name, value);
+            }
+
+            if (expr instanceof Expr.Binary) {
+                Expr.Binary binary = (Expr.Binary)expr;
+                Expr left = rewrite(binary.left);
+                Expr right = rewrite(binary.right);
+                if (left == binary.left && right == binary.right) return expr;
+                return new Expr.Binary(left, binary.operator, right);
+            }
+
+            if (expr instanceof Expr.Call) {
+                Expr.Call call = (Expr.Call)expr;
+                Expr callee = rewrite(call.callee);
+                List<Expr> arguments = new ArrayList<>(call.arguments.size());
+                boolean changed = callee != call.callee;
+                for (Expr argument : call.arguments) {
+                    Expr rewritten = rewrite(argument);
+                    arguments.add(rewritten);
+                    changed |= rewritten != argument;
+                }
+                if (!changed) return expr;
+                return new Expr.Call(callee, call.paren, arguments);
+            }
+
+            if (expr instanceof Expr.Grouping) {
+                Expr.Grouping grouping = (Expr.Grouping)expr;
+                Expr expression = rewrite(grouping.expression);
+                if (expression == grouping.expression) return expr;
+                return new Expr.Grouping(expression);
+            }
+
+            if (expr instanceof Expr.Logical) {
+                Expr.Logical logical = (Expr.Logical)expr;
+                Expr left = rewrite(logical.left);
+                Expr right = rewrite(logical.right);
+                if (left == logical.left && right == logical.right) return expr;
+                return new Expr.Logical(left, logical.operator, right);
+            }
+
+            if (expr instanceof Expr.Unary) {
+                Expr.Unary unary = (Expr.Unary)expr;
+                Expr right = rewrite(unary.right);
+                if (right == unary.right) return expr;
+                return new Expr.Unary(unary.operator, right);
+            }
+
+            return expr;
+        }
+
+        // The key of an operator or call worth reusing, or null.
+        private String operation(Expr expr) {
+            if (expr instanceof Expr.Binary || expr instanceof Expr.Call
+                    || expr instanceof Expr.Logical
+                    || expr instanceof Expr.Unary) {
+                return key(expr);
+            }
+            return null;
+        }
+
+        // A string equal for structurally identical pure expressions, or
+        // null if the expression is not pure. Locals are told apart by
+        // their binding, which is the same everywhere in one scope.
+        private String key(Expr expr) {
+            if (keys.containsKey(expr)) return keys.get(expr);
+
+            String key = null;
+            if (expr instanceof Expr.Literal) {
+                Object value = ((Expr.Literal)expr).value;
+                if (value == null) {
+                    key = "nil";
+                } else {
+                    String text = value.toString();
+                    key = value.getClass().getSimpleName() + text.length()
+                            + ":" + text;
+                }
+            } else if (expr instanceof Expr.Variable) {
+                Expr.Variable variable = (Expr.Variable)expr;
+                if (!variable.boxed && !variable.assigned) {
+                    if (variable.depth != -1) {
+                        key = "local" + variable.depth + "." + variable.slot;
+                    } else if (variable.capture != -1) {
+                        key = "capture" + variable.capture;
+                    }
+                }
+            } else if (expr instanceof Expr.Grouping) {
+                key = key(((Expr.Grouping)expr).expression);
+            } else if (expr instanceof Expr.Unary) {
+                Expr.Unary unary = (Expr.Unary)expr;
+                key = join(unary.operator.type.name(), unary.right);
+            } else if (expr instanceof Expr.Binary) {
+                Expr.Binary binary = (Expr.Binary)expr;
+                key = join(binary.operator.type.name(), binary.left,
+                        binary.right);
+            } else if (expr instanceof Expr.Logical) {
+                Expr.Logical logical = (Expr.Logical)expr;
+                key = join(logical.operator.type.name(), logical.left,
+                        logical.right);
+            } else if (expr instanceof Expr.Call) {
+                Expr.Call call = (Expr.Call)expr;
+                if (isPureBuiltin(call.callee)) {
+                    String name = ((Expr.Variable)call.callee).name.lexeme;
+                    key = join(name, call.arguments.toArray(new Expr[0]));
+                }
+            }
+
+            keys.put(expr, key);
+            return key;
+        }
+
+        private String join(String operator, Expr... operands) {
+            StringBuilder key = new StringBuilder("(").append(operator);
+            for (Expr operand : operands) {
+                String operandKey = key(operand);
+                if (operandKey == null) return null;
+                key.append(' ').append(operandKey);
+            }
+            return key.append(')').toString();
+        }
+
+        private boolean isPureBuiltin(Expr callee) {
+            if (!(callee instanceof Expr.Variable)) return false;
+
+            Expr.Variable variable = (Expr.Variable)callee;
+            return variable.depth == -1 && variable.capture == -1
+                    && pureGlobals.contains(variable.name.lexeme);
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package com.micharksi.mbasic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.micharksi.mbasic.OpCode.*;
+
+// Compiles a resolved program into Chunks for the VM. Locals keep the
+// depth and slot the Resolver gave them, so the VM's frames line up with
+// the Interpreter's environments.
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private final Stmt.Function function;
+
+    private int[] code = new int[64];
+    private int count = 0;
+    private final List<Object> constants = new ArrayList<>();
+
+    private int stackDepth = 0;
+    private int maxStack = 0;
+
+    Compiler() {
+        this(null);
+    }
+
+    private Compiler(Stmt.Function function) {
+        this.function = function;
+    }
+
+    Chunk compile(List<Stmt> statements) {
+        if (function != null) {
+            for (int slot : function.boxedParams) {
+                emit(GET_LOCAL, slot, 1);
+                emit(BOX, 0, 0);
+                emit(DEFINE_LOCAL, slot, -1);
+            }
+        }
+
+        for (Stmt statement : statements) {
+            compile(statement);
+        }
+
+        emit(NIL, 0, 1);
+        emit(RETURN, 0, -1);
+
+        if (function == null) {
+            return finish(null, 0, 0, Collections.<Capture>emptyList());
+        }
+
+        return finish(function.name.lexeme, function.params.size(),
+                function.slotCount, function.captures);
+    }
+
+    private Chunk finish(String name, int arity, int slotCount,
+                         List<Capture> captures) {
+        return new Chunk(name, arity, slotCount,
+                Arrays.copyOf(code, count), constants.toArray(), maxStack,
+                captures);
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+
+        if (expr.boxed) {
+            loadBinding(expr.name, expr.depth, expr.slot, expr.capture);
+            emit(SET_BOX, 0, -1);
+        } else if (expr.depth != -1) {
+            emit(SET_LOCAL, local(expr.name, expr.depth, expr.slot), 0);
+        } else {
+            emit(SET_GLOBAL, constant(expr.cell), 0);
+            emitWord(constant(expr.name));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+
+        int op;
+        switch (expr.operator.type) {
+            case PLUS: op = ADD; break;
+            case MINUS: op = SUBTRACT; break;
+            case LESS: op = OpCode.LESS; break;
+            case LESS_EQUAL: op = OpCode.LESS_EQUAL; break;
+            case GREATER: op = OpCode.GREATER; break;
+            case GREATER_EQUAL: op = OpCode.GREATER_EQUAL; break;
+            case EQUAL_EQUAL: op = EQUAL; break;
+            case BANG_EQUAL: op = NOT_EQUAL; break;
+            default: op = BINARY; break;
+        }
+
+        emit(op, constant(expr.operator), -1);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        compile(expr.callee);
+        for (Expr argument : expr.arguments) {
+            compile(argument);
+        }
+
+        emit(CALL, expr.arguments.size(), -expr.arguments.size());
+        emitWord(constant(expr.paren));
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emit(NIL, 0, 1);
+        } else if (expr.value.equals(true)) {
+            emit(TRUE, 0, 1);
+        } else if (expr.value.equals(false)) {
+            emit(FALSE, 0, 1);
+        } else {
+            emit(CONSTANT, constant(expr.value), 1);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+
+        int jump = emitJump(expr.operator.type == TokenType.LOGICAL_OR
+                ? JUMP_IF_TRUE_OR_POP : JUMP_IF_FALSE_OR_POP, -1);
+        compile(expr.right);
+        patchJump(jump);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+
+        if (expr.operator.type == TokenType.BANG) {
+            emit(NOT, 0, 0);
+        } else {
+            emit(NEGATE, constant(expr.operator), 0);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        if (expr.depth != -1 || expr.capture != -1) {
+            loadBinding(expr.name, expr.depth, expr.slot, expr.capture);
+            if (expr.boxed) emit(UNBOX, 0, 0);
+        } else {
+            emit(GET_GLOBAL, constant(expr.cell), 1);
+            emitWord(constant(expr.name));
+        }
+        return null;
+    }
+
+    // Pushes what a local's slot or a capture holds, which is the Box
+    // itself when the variable is boxed.
+    private void loadBinding(Token name, int depth, int slot, int capture) {
+        if (depth != -1) {
+            emit(GET_LOCAL, local(name, depth, slot), 1);
+        } else {
+            emit(GET_CAPTURE, capture, 1);
+        }
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if (!stmt.elided) emit(PUSH_SCOPE, stmt.slotCount, 0);
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        if (!stmt.elided) emit(POP_SCOPE, 0, 0);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        if (isTailCall(stmt.expression)) {
+            tailCall((Expr.Call)stmt.expression, DISCARD);
+            return null;
+        }
+
+        compile(stmt.expression);
+        emit(POP, 0, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        Chunk chunk = new Compiler(stmt).compile(stmt.body);
+
+        if (!stmt.boxed) {
+            emit(CLOSURE, constant(chunk), 1);
+            define(stmt.slot, stmt.cell);
+            return null;
+        }
+
+        // The Box goes in first so the closure can capture it.
+        emit(NIL, 0, 1);
+        emit(BOX, 0, 0);
+        emit(DEFINE_LOCAL, stmt.slot, -1);
+        emit(CLOSURE, constant(chunk), 1);
+        emit(GET_LOCAL, stmt.slot, 1);
+        emit(SET_BOX, 0, -1);
+        emit(POP, 0, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+
+        int elseJump = emitJump(JUMP_IF_FALSE, -1);
+        compile(stmt.thenBranch);
+
+        if (stmt.elseBranch == null) {
+            patchJump(elseJump);
+            return null;
+        }
+
+        int endJump = emitJump(JUMP, 0);
+        patchJump(elseJump);
+        compile(stmt.elseBranch);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitNamespaceStmt(Stmt.Namespace stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (isTailCall(stmt.value)) {
+            tailCall((Expr.Call)stmt.value, 0);
+            return null;
+        }
+
+        if (stmt.value != null) {
+            compile(stmt.value);
+        } else {
+            emit(NIL, 0, 1);
+        }
+
+        emit(RETURN, 0, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emit(NIL, 0, 1);
+        }
+
+        if (stmt.boxed) emit(BOX, 0, 0);
+        define(stmt.slot, stmt.cell);
+        return null;
+    }
+
+    private static boolean isTailCall(Expr expr) {
+        return expr instanceof Expr.Call && ((Expr.Call)expr).isTailCall;
+    }
+
+    // The VM reuses the current frame for a VMFunction. Anything else is
+    // called normally and the RETURN after it runs.
+    private void tailCall(Expr.Call expr, int discard) {
+        compile(expr.callee);
+        for (Expr argument : expr.arguments) {
+            compile(argument);
+        }
+
+        if (expr.arguments.size() >= DISCARD) {
+            MBasic.error(expr.paren, "Too many arguments to compile.");
+        }
+
+        emit(TAIL_CALL, expr.arguments.size() | discard,
+                -expr.arguments.size());
+        emitWord(constant(expr.paren));
+        emit(RETURN, 0, -1);
+    }
+
+    private void define(int slot, Cell cell) {
+        if (slot != -1) {
+            emit(DEFINE_LOCAL, slot, -1);
+        } else {
+            emit(DEFINE_GLOBAL, constant(cell), -1);
+        }
+    }
+
+    private int local(Token name, int depth, int slot) {
+        if (depth > 0xFF || slot > 0xFFFF) {
+            MBasic.error(name, "Too many nested scopes or locals to compile.");
+            return 0;
+        }
+
+        return depth << 16 | slot;
+    }
+
+    private int constant(Object value) {
+        constants.add(value);
+        if (constants.size() - 1 > MAX_OPERAND) {
+            throw new IllegalStateException("Too many constants in one chunk.");
+        }
+        return constants.size() - 1;
+    }
+
+    private void emit(int op, int operand, int stackEffect) {
+        emitWord(operand << 8 | op);
+
+        stackDepth += stackEffect;
+        if (stackDepth > maxStack) maxStack = stackDepth;
+    }
+
+    private void emitWord(int word) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+        }
+        code[count++] = word;
+    }
+
+    private int emitJump(int op, int stackEffect) {
+        emit(op, 0, stackEffect);
+        return count - 1;
+    }
+
+    // Points the jump at the next instruction to be emitted.
+    private void patchJump(int jump) {
+        int offset = count - jump - 1;
+        if (offset > MAX_OPERAND) {
+            throw new IllegalStateException("Too much code to jump over.");
+        }
+        code[jump] |= offset << 8;
+    }
+}
@@ -1,59 +1,102 @@
 package com.micharksi.mbasic;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 class Environment {
 
     final Environment enclosing;
 
-    private final Map<String, Object> values = new HashMap<>();
+    // Only the global environment is keyed by name. Every other
+    // environment is a frame whose slots were assigned by the Resolver.
+    private final Map<String, Cell> cells;
+
+    private Object[] slots;
+
+    // The free variables of the function this frame belongs to. A
+    // function's frame does not link to the frame it was created in; the
+    // chain of enclosing frames ends at its outermost block.
+    Object[] captures;
+
 
     Environment() {
         enclosing = null;
+        cells = new HashMap<>();
+        slots = null;
+        captures = null;
     }
 
-    Environment(Environment enclosing) {
+    Environment(Environment enclosing, int size) {
         this.enclosing = enclosing;
+        cells = null;
+        slots = new Object[size];
+        captures = enclosing.captures;
     }
 
+    // A function's frame, made once per call depth by FrameStack and
+    // reused by later calls at that depth. The caller stores the
+    // arguments in its first slots.
+    Environment(Object[] captures, Object[] slots) {
+        enclosing = null;
+        cells = null;
+        this.slots = slots;
+        this.captures = captures;
+    }
 
 
-    Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
-        }
-
-
-        if (enclosing != null) return enclosing.get(name);
 
+    // FrameStack support. A function's frame is reused for later calls at
+    // the same depth: grown to size slots, keeping the arguments already
+    // stored in it, and cleared when the call ends.
+    void enter(Object[] captures, int size) {
+        if (slots.length < size) slots = Arrays.copyOf(slots, size);
+        this.captures = captures;
+    }
 
-        throw new RuntimeError(name,
-                "Undefined variable '" + name.lexeme + "'.");
+    void clear() {
+        Arrays.fill(slots, null);
+        captures = null;
     }
 
+    // The first count slots as an argument array, for a callee that takes
+    // one.
+    Object[] arguments(int count) {
+        return Arrays.copyOf(slots, count);
+    }
 
 
-    void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
+    // The global's Cell, created undefined if nothing has declared it.
+    Cell cell(String name) {
+        Cell cell = cells.get(name);
+        if (cell == null) {
+            cell = new Cell();
+            cells.put(name, cell);
         }
 
+        return cell;
+    }
 
-        if (enclosing != null) {
-            enclosing.assign(name, value);
-            return;
-        }
+
+    Object get(Token name) {
+        return cell(name.lexeme).get(name);
+    }
 
 
-        throw new RuntimeError(name,
-                "Undefined variable '" + name.lexeme + "'.");
+
+    void assign(Token name, Object value) {
+        cell(name.lexeme).assign(name, value);
     }
 
 
     void define(String name, Object value) {
-        values.put(name, value);
+        cell(name).define(value);
+    }
+
+
+    void define(int slot, Object value) {
+        slots[slot] = value;
     }
 
 
@@ -67,24 +110,40 @@ class Environment {
     }
 
 
-    Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+    Object getAt(int distance, int slot) {
+        return ancestor(distance).slots[slot];
     }
 
 
-    void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+    void assignAt(int distance, int slot, Object value) {
+        ancestor(distance).slots[slot] = value;
+    }
+
+
+    // Fills in the captures of a closure created in this frame. self is
+    // the new function.
+    void capture(List<Capture> layout, Object[] values, Object self) {
+        for (int i = 0; i < values.length; i++) {
+            Capture capture = layout.get(i);
+            if (capture.self) {
+                values[i] = self;
+            } else if (capture.depth == -1) {
+                values[i] = captures[capture.slot];
+            } else {
+                values[i] = getAt(capture.depth, capture.slot);
+            }
+        }
     }
 
 
     @Override
     public String toString() {
-        String result = values.toString();
+        String result = cells != null ? cells.toString()
+                : Arrays.toString(slots);
         if (enclosing != null) {
             result += " -> " + enclosing.toString();
         }
 
         return result;
     }
-
-}
\ No newline at end of file
+}
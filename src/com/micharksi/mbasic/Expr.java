@@ -27,6 +27,15 @@ public abstract class Expr {
 
         final Token name;
         final Expr value;
+
+        // Resolved binding, set by the Resolver. A depth of -1 means the
+        // name is either one of the function's captures, at index capture,
+        // or a global, bound to cell. A boxed local or capture holds a Box.
+        int depth = -1;
+        int slot;
+        int capture = -1;
+        boolean boxed;
+        Cell cell;
     }
 
 
@@ -45,6 +54,16 @@ public abstract class Expr {
         final Expr left;
         final Token operator;
         final Expr right;
+
+        // Type feedback the Interpreter records on first evaluation. INT
+        // and DOUBLE nodes take a fast path while their operands keep that
+        // type and drop to GENERIC the first time they do not.
+        static final int UNINITIALIZED = 0;
+        static final int INT = 1;
+        static final int DOUBLE = 2;
+        static final int GENERIC = 3;
+
+        int state = UNINITIALIZED;
     }
 
 
@@ -63,6 +82,16 @@ public abstract class Expr {
         final Expr callee;
         final Token paren;
         final List<Expr> arguments;
+
+        // Set by the Resolver when nothing in the calling function runs
+        // after this call returns.
+        boolean isTailCall;
+
+        // Inline cache: the last callee seen here, which has passed the
+        // call checks for this site's argument count. Global callees are
+        // read straight from their Cell, so a reassigned global simply
+        // shows up as a different callee.
+        MBasicCallable cachedCallee;
     }
 
     static class Grouping extends Expr {
@@ -137,6 +166,18 @@ public abstract class Expr {
         }
 
         final Token name;
+
+        // Resolved binding, set by the Resolver. A depth of -1 means the
+        // name is either one of the function's captures, at index capture,
+        // or a global, bound to cell. A boxed local or capture holds a Box.
+        int depth = -1;
+        int slot;
+        int capture = -1;
+        boolean boxed;
+        Cell cell;
+
+        // Set by the Resolver when anything assigns the local read here.
+        boolean assigned;
     }
 
     abstract <R> R accept(Visitor<R> visitor);
@@ -0,0 +1,42 @@
+package com.micharksi.mbasic;
+
+import java.util.Arrays;
+
+// Function frames for interpreted calls. Closures copy what they capture,
+// so nothing holds on to a function's frame once its call ends, and the
+// next call at the same depth can reuse it.
+final class FrameStack {
+    private Environment[] frames = new Environment[64];
+    private int depth = 0;
+
+    // Returns the next frame, with room for at least size slots. Every
+    // push is matched by a pop, or by a popTo when unwinding an error.
+    Environment push(int size) {
+        if (depth == frames.length) {
+            frames = Arrays.copyOf(frames, depth * 2);
+        }
+
+        Environment frame = frames[depth];
+        if (frame == null) {
+            frame = new Environment(null, new Object[Math.max(size, 8)]);
+            frames[depth] = frame;
+        } else {
+            frame.enter(null, size);
+        }
+
+        depth++;
+        return frame;
+    }
+
+    void pop() {
+        frames[--depth].clear();
+    }
+
+    int depth() {
+        return depth;
+    }
+
+    void popTo(int depth) {
+        while (this.depth > depth) pop();
+    }
+}
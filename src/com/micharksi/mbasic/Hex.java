@@ -0,0 +1,28 @@
+package com.micharksi.mbasic;
+
+// A hexadecimal value. The Tokenizer parses HEX literals into these, and
+// the digits are only produced again when the value is printed.
+final class Hex {
+    final long value;
+
+    Hex(long value) {
+        this.value = value;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Hex && ((Hex)other).value == value;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(value);
+    }
+
+    @Override
+    public String toString() {
+        String digits = Long.toString(value, 16).toUpperCase();
+        if (value < 0) return "-0x" + digits.substring(1);
+        return "0x" + digits;
+    }
+}
@@ -3,13 +3,21 @@ package com.micharksi.mbasic;
 import java.util.*;
 
 public class Interpreter implements Expr.Visitor<Object>,
-        Stmt.Visitor<Void> {
+        Stmt.Visitor<Object> {
 
-    final Environment globals = new Environment();
-    private Environment environment = globals;
+    // What a statement returns when it completes without running a return
+    // statement. Otherwise it returns the function's value, which stops the
+    // enclosing blocks without throwing.
+    static final Object NORMAL = new Object();
 
+    // Builtins whose result depends only on their arguments and which do
+    // nothing else, so a call may be reused in place of an identical one.
+    static final Set<String> PURE_BUILTINS = new HashSet<>(Arrays.asList(
+            "str", "binary", "hexadecimal", "decimal"));
 
-    private final Map<Expr, Integer> locals = new HashMap<>();
+    final Environment globals = new Environment();
+    private Environment environment = globals;
+    final FrameStack frames = new FrameStack();
 
     Interpreter() {
         globals.define("clock", new MBasicCallable() {
@@ -18,7 +26,7 @@ public class Interpreter implements Expr.Visitor<Object>,
 
             @Override
             public Object call(Interpreter interpreter,
-                               List<Object> arguments) {
+                               Object[] arguments) {
                 return (double)System.currentTimeMillis() / 1000.0;
             }
 
@@ -34,8 +42,8 @@ public class Interpreter implements Expr.Visitor<Object>,
             }
 
             @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
-                System.out.println(arguments.get(0));
+            public Object call(Interpreter interpreter, Object[] arguments) {
+                System.out.println(arguments[0]);
                 return null;
             }
         });
@@ -48,8 +56,8 @@ public class Interpreter implements Expr.Visitor<Object>,
             }
 
             @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
-                return arguments.get(0).toString();
+            public Object call(Interpreter interpreter, Object[] arguments) {
+                return arguments[0].toString();
             }
         });
 
@@ -61,7 +69,7 @@ public class Interpreter implements Expr.Visitor<Object>,
             }
 
             @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
+            public Object call(Interpreter interpreter, Object[] arguments) {
                 Scanner s = new Scanner(System.in);
                 return s.nextLine();
             }
@@ -75,13 +83,13 @@ public class Interpreter implements Expr.Visitor<Object>,
             }
 
             @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
-                if(MiscMath.isBin(arguments.get(0).toString())) return arguments.get(0);
-                if(MiscMath.isHex(arguments.get(0).toString())) return
-                        MiscMath.decToBin(MiscMath.hexToDec(arguments.get(0).toString()));
-                if(arguments.get(0) instanceof Integer) return MiscMath.decToBin((int)arguments.get(0));
+            public Object call(Interpreter interpreter, Object[] arguments) {
+                Object value = arguments[0];
+                if(value instanceof Bin) return value;
+                if(value instanceof Hex) return new Bin(((Hex)value).value);
+                if(value instanceof Integer) return new Bin((Integer)value);
 
-                throw new RuntimeError(new Token(null, arguments.get(0).toString(),
+                throw new RuntimeError(new Token(null, arguments[0].toString(),
                         null, -1), "Expected bin, int, or hex.");
             }
         });
@@ -94,13 +102,13 @@ public class Interpreter implements Expr.Visitor<Object>,
             }
 
             @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
-                if(MiscMath.isHex(arguments.get(0).toString())) return arguments.get(0);
-                if(MiscMath.isBin(arguments.get(0).toString())) return
-                        MiscMath.decToHex(MiscMath.binToDec(arguments.get(0).toString()));
-                if(arguments.get(0) instanceof Integer) return MiscMath.decToHex((int)arguments.get(0));
+            public Object call(Interpreter interpreter, Object[] arguments) {
+                Object value = arguments[0];
+                if(value instanceof Hex) return value;
+                if(value instanceof Bin) return new Hex(((Bin)value).value);
+                if(value instanceof Integer) return new Hex((Integer)value);
 
-                throw new RuntimeError(new Token(null, arguments.get(0).toString(),
+                throw new RuntimeError(new Token(null, arguments[0].toString(),
                         null, -1), "Expected bin, int, or hex.");
             }
         });
@@ -113,20 +121,24 @@ public class Interpreter implements Expr.Visitor<Object>,
             }
 
             @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
-                if(arguments.get(0) instanceof Integer) return arguments.get(0);
-                if(MiscMath.isBin(arguments.get(0).toString()))
-                    return MiscMath.binToDec(arguments.get(0).toString());
-                if(MiscMath.isHex(arguments.get(0).toString()))
-                    return MiscMath.hexToDec(arguments.get(0).toString());
+            public Object call(Interpreter interpreter, Object[] arguments) {
+                if(arguments[0] instanceof Integer) return arguments[0];
+                if(arguments[0] instanceof Hex || arguments[0] instanceof Bin) {
+                    long value = bits(arguments[0]);
+                    if((int)value != value) {
+                        throw new RuntimeError(new Token(null, arguments[0].toString(),
+                                null, -1), "Value is too large for an int.");
+                    }
+                    return (int)value;
+                }
 
                 try {
-                    return arguments.get(0).toString().contains(".") ?
-                              arguments.get(0)
-                            : Integer.parseInt(arguments.get(0).toString());
-                    //return Integer.parseInt(arguments.get(0).toString());
+                    return arguments[0].toString().contains(".") ?
+                              arguments[0]
+                            : Integer.parseInt(arguments[0].toString());
+                    //return Integer.parseInt(arguments[0].toString());
                 } catch(NumberFormatException ex){
-                    throw new RuntimeError(new Token(null, arguments.get(0).toString(),
+                    throw new RuntimeError(new Token(null, arguments[0].toString(),
                             null, -1), "Expected int.");
                 }
             }
@@ -149,25 +161,24 @@ public class Interpreter implements Expr.Visitor<Object>,
     }
 
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    private Object execute(Stmt stmt) {
+        return stmt.accept(this);
     }
 
 
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
-    }
-
-
-    void executeBlock(List<Stmt> statements,
-                      Environment environment) {
+    Object executeBlock(List<Stmt> statements,
+                        Environment environment) {
         Environment previous = this.environment;
         try {
             this.environment = environment;
 
-            for (Stmt statement : statements) {
-                execute(statement);
+            // Loops here rather than in a helper, which would put one
+            // more Java frame on every interpreted call.
+            for (int i = 0; i < statements.size(); i++) {
+                Object completion = execute(statements.get(i));
+                if (completion != NORMAL) return completion;
             }
+            return NORMAL;
         } finally {
             this.environment = previous;
         }
@@ -181,11 +192,15 @@ public class Interpreter implements Expr.Visitor<Object>,
 */
 
 
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, value);
+        if (expr.boxed) {
+            Object box = expr.depth != -1
+                    ? environment.getAt(expr.depth, expr.slot)
+                    : environment.captures[expr.capture];
+            ((Box)box).value = value;
+        } else if (expr.depth != -1) {
+            environment.assignAt(expr.depth, expr.slot, value);
         } else {
-            globals.assign(expr.name, value);
+            expr.cell.assign(expr.name, value);
         }
 
 
@@ -194,146 +209,364 @@ public class Interpreter implements Expr.Visitor<Object>,
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
-        int type;
+        // Specialized nodes read their operands unboxed, so only the value
+        // of the whole expression is boxed.
+        switch (expr.state) {
+            case Expr.Binary.INT: {
+                int left;
+                int right;
+                try {
+                    left = evaluateInt(expr.left);
+                } catch (Unexpected unexpected) {
+                    return generalize(expr, unexpected.value,
+                            evaluate(expr.right));
+                }
+                try {
+                    right = evaluateInt(expr.right);
+                } catch (Unexpected unexpected) {
+                    return generalize(expr, left, unexpected.value);
+                }
+                return intBinary(expr.operator.type, left, right);
+            }
+
+            case Expr.Binary.DOUBLE: {
+                double left;
+                double right;
+                try {
+                    left = evaluateDouble(expr.left);
+                } catch (Unexpected unexpected) {
+                    return generalize(expr, unexpected.value,
+                            evaluate(expr.right));
+                }
+                try {
+                    right = evaluateDouble(expr.right);
+                } catch (Unexpected unexpected) {
+                    return generalize(expr, left, unexpected.value);
+                }
+                return doubleBinary(expr.operator.type, left, right);
+            }
+        }
+
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right); // [left]
 
-        switch (expr.operator.type) {
-            case BANG_EQUAL: return !isEqual(left, right);
-            case EQUAL_EQUAL: return isEqual(left, right);
+        if (expr.state == Expr.Binary.UNINITIALIZED) {
+            expr.state = specialize(expr.operator.type, left, right);
+        }
 
+        return binary(expr.operator, left, right);
+    }
 
-            case GREATER:
+    // Thrown by evaluateInt() and evaluateDouble() when a value is not of
+    // the type its parent node was specialized on. It carries the value so
+    // the parent can finish generically without evaluating it again.
+    private static class Unexpected extends RuntimeException {
+        private static final long serialVersionUID = 1L;
 
-                type = checkNumberOperands(expr.operator, left, right);
+        final Object value;
 
-                return type == 0 ? (double)left > (double)right
-                        : (int)left > (int)right;
-            case GREATER_EQUAL:
+        Unexpected(Object value) {
+            super(null, null, false, false);
+            this.value = value;
+        }
+    }
 
-                type = checkNumberOperands(expr.operator, left, right);
+    // Evaluates an operand of a node specialized on ints. Nested int
+    // arithmetic is computed without boxing the intermediate results.
+    private int evaluateInt(Expr expr) {
+        while (expr instanceof Expr.Grouping) {
+            expr = ((Expr.Grouping)expr).expression;
+        }
 
-                return type == 0 ? (double)left >= (double)right
-                        : (int)left >= (int)right;
-            case LESS:
+        // Leaves are read directly rather than through the visitor.
+        if (expr instanceof Expr.Variable) {
+            return expectInt(lookUpVariable((Expr.Variable)expr));
+        }
+        if (expr instanceof Expr.Literal) {
+            return expectInt(((Expr.Literal)expr).value);
+        }
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            if (binary.state == Expr.Binary.INT
+                    && isArithmetic(binary.operator.type)) {
+                int left;
+                int right;
+                try {
+                    left = evaluateInt(binary.left);
+                } catch (Unexpected unexpected) {
+                    return expectInt(generalize(binary, unexpected.value,
+                            evaluate(binary.right)));
+                }
+                try {
+                    right = evaluateInt(binary.right);
+                } catch (Unexpected unexpected) {
+                    return expectInt(generalize(binary, left,
+                            unexpected.value));
+                }
+                return intArithmetic(binary.operator.type, left, right);
+            }
+        }
 
-                type = checkNumberOperands(expr.operator, left, right);
+        return expectInt(evaluate(expr));
+    }
 
-                return type == 0 ? (double)left < (double)right
-                        : (int)left < (int)right;
-            case LESS_EQUAL:
+    private double evaluateDouble(Expr expr) {
+        while (expr instanceof Expr.Grouping) {
+            expr = ((Expr.Grouping)expr).expression;
+        }
 
-                type = checkNumberOperands(expr.operator, left, right);
+        if (expr instanceof Expr.Variable) {
+            return expectDouble(lookUpVariable((Expr.Variable)expr));
+        }
+        if (expr instanceof Expr.Literal) {
+            return expectDouble(((Expr.Literal)expr).value);
+        }
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            if (binary.state == Expr.Binary.DOUBLE
+                    && isArithmetic(binary.operator.type)) {
+                double left;
+                double right;
+                try {
+                    left = evaluateDouble(binary.left);
+                } catch (Unexpected unexpected) {
+                    return expectDouble(generalize(binary, unexpected.value,
+                            evaluate(binary.right)));
+                }
+                try {
+                    right = evaluateDouble(binary.right);
+                } catch (Unexpected unexpected) {
+                    return expectDouble(generalize(binary, left,
+                            unexpected.value));
+                }
+                return doubleArithmetic(binary.operator.type, left, right);
+            }
+        }
 
-                return type == 0 ? (double)left <= (double)right
-                        : (int)left <= (int)right;
-            case MINUS:
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            if (unary.operator.type == TokenType.MINUS) {
+                try {
+                    return -evaluateDouble(unary.right);
+                } catch (Unexpected unexpected) {
+                    return expectDouble(unary(unary.operator,
+                            unexpected.value));
+                }
+            }
+        }
+
+        return expectDouble(evaluate(expr));
+    }
+
+    private static int expectInt(Object value) {
+        if (value instanceof Integer) return (Integer)value;
+        throw new Unexpected(value);
+    }
+
+    private static double expectDouble(Object value) {
+        if (value instanceof Double) return (Double)value;
+        throw new Unexpected(value);
+    }
 
-                type = checkNumberOperands(expr.operator, left, right);
+    // Gives up on a specialized node whose operands changed type.
+    private static Object generalize(Expr.Binary expr,
+                                     Object left, Object right) {
+        expr.state = Expr.Binary.GENERIC;
+        return binary(expr.operator, left, right);
+    }
 
-                return type == 2 ? MiscMath.hexSubtract(left.toString(), right.toString())
-                        : type == 3 ? MiscMath.binSubtract(left.toString(), right.toString())
-                        : type == 0 ? (double)left - (double)right
-                        : (int)left - (int)right;
+    private static boolean isArithmetic(TokenType type) {
+        switch (type) {
             case PLUS:
-                if (left instanceof Double && right instanceof Double) {
-                    return (double)left + (double)right;
-                } // [plus]
+            case MINUS:
+            case STAR:
+            case SLASH:
+            case PERCENT:
+                return true;
+        }
+        return false;
+    }
 
+    // Picks the state an Expr.Binary moves to after its first evaluation.
+    // A node only leaves INT or DOUBLE for GENERIC, never the other way, so
+    // a polymorphic site does not flip back and forth.
+    private static int specialize(TokenType type, Object left, Object right) {
+        switch (type) {
+            case PLUS:
+            case MINUS:
+            case LESS:
+            case LESS_EQUAL:
+            case GREATER:
+            case GREATER_EQUAL:
                 if (left instanceof Integer && right instanceof Integer) {
-                    return (Integer)left + (Integer)right;
+                    return Expr.Binary.INT;
+                }
+                if (left instanceof Double && right instanceof Double) {
+                    return Expr.Binary.DOUBLE;
                 }
+                return Expr.Binary.GENERIC;
 
-                if (left instanceof String && right instanceof String) {
-                    char miscTypeLeft = left.toString().toCharArray()[0];
-                    char miscTypeRight = right.toString().toCharArray()[0];
-
-                    if (miscTypeLeft == miscTypeRight){
-                        if (miscTypeLeft == 'x'){
-                            return MiscMath.hexAdd((String)left, (String)right);
-                        }
-                        if (miscTypeLeft == 'b'){
-                            return MiscMath.binAdd((String)left, (String)right);
-                        }
-                    }
+            case PERCENT:
+            case EQUAL_EQUAL:
+            case BANG_EQUAL:
+                if (left instanceof Integer && right instanceof Integer) {
+                    return Expr.Binary.INT;
+                }
+                return Expr.Binary.GENERIC;
 
-                    return (String)left + (String)right;
+            case STAR:
+            case SLASH:
+                if (left instanceof Double && right instanceof Double) {
+                    return Expr.Binary.DOUBLE;
                 }
+                return Expr.Binary.GENERIC;
+        }
 
-/* Evaluating Expressions binary-plus < Evaluating Expressions string-wrong-type
-        break;
-*/
+        return Expr.Binary.GENERIC;
+    }
 
-                throw new RuntimeError(expr.operator,
-                        "Operands must be two numbers or two strings.");
+    // Fast paths for specialized nodes. Each must give the same result as
+    // binary() does for the same operands.
+    private static Object intBinary(TokenType type, int left, int right) {
+        switch (type) {
+            case PLUS:
+            case MINUS:
+            case PERCENT: return intArithmetic(type, left, right);
+            case LESS: return left < right;
+            case LESS_EQUAL: return left <= right;
+            case GREATER: return left > right;
+            case GREATER_EQUAL: return left >= right;
+            case EQUAL_EQUAL: return left == right;
+            case BANG_EQUAL: return left != right;
+        }
 
+        // Unreachable.
+        return null;
+    }
 
-            case SLASH:
+    private static Object doubleBinary(TokenType type,
+                                       double left, double right) {
+        switch (type) {
+            case PLUS:
+            case MINUS:
+            case STAR:
+            case SLASH: return doubleArithmetic(type, left, right);
+            case LESS: return left < right;
+            case LESS_EQUAL: return left <= right;
+            case GREATER: return left > right;
+            case GREATER_EQUAL: return left >= right;
+        }
 
-                checkNumberOperands(expr.operator, left, right);
+        // Unreachable.
+        return null;
+    }
 
-                return (double)left / (double)right;
-            case STAR:
+    private static int intArithmetic(TokenType type, int left, int right) {
+        switch (type) {
+            case PLUS: return left + right;
+            case MINUS: return left - right;
+            default: return left % right;
+        }
+    }
 
-                checkNumberOperands(expr.operator, left, right);
+    private static double doubleArithmetic(TokenType type,
+                                           double left, double right) {
+        switch (type) {
+            case PLUS: return left + right;
+            case MINUS: return left - right;
+            case STAR: return left * right;
+            default: return left / right;
+        }
+    }
 
-                return (double)left * (double)right;
-            case PERCENT:
+    @Override
+    public Object visitCallExpr(Expr.Call expr) {
+        Object callee = evaluate(expr.callee);
 
-                checkNumberOperands(expr.operator, left, right);
+        if (callee instanceof MBasicFunction) return callFunction(expr, callee);
 
-                return (Integer)left % (Integer)right;
-            case BITWISE_OR:
+        Object[] arguments = evaluateArguments(expr);
 
-                type = checkNumberOperands(expr.operator, left, right);
+        MBasicCallable function = checkCallSite(expr, callee,
+                arguments.length);
 
-                return type == 2 ? MiscMath.decToHex(
-                        MiscMath.binToDec(MiscMath.binOr(
-                                MiscMath.decToBin(MiscMath.hexToDec(left.toString())),
-                                MiscMath.decToBin(MiscMath.hexToDec(right.toString()))
-                        ))
-                ) : MiscMath.binOr(left.toString(), right.toString());
-            case BITWISE_AND:
+        return function.call(this, arguments);
+    }
+
+    // Evaluates the arguments straight into the callee's frame, which is
+    // free again as soon as the body has run.
+    private Object callFunction(Expr.Call expr, Object callee) {
+        List<Expr> arguments = expr.arguments;
+        Object result;
 
-                type = checkNumberOperands(expr.operator, left, right);
+        Environment frame = frames.push(arguments.size());
+        try {
+            for (int i = 0; i < arguments.size(); i++) { // [in-order]
+                frame.define(i, evaluate(arguments.get(i)));
+            }
 
-                return type == 2 ? MiscMath.decToHex(
-                        MiscMath.binToDec(MiscMath.binAnd(
-                                MiscMath.decToBin(MiscMath.hexToDec(left.toString())),
-                                MiscMath.decToBin(MiscMath.hexToDec(right.toString()))
-                        ))
-            ) : MiscMath.binAnd(left.toString(), right.toString());
+            MBasicFunction function = (MBasicFunction)checkCallSite(expr,
+                    callee, arguments.size());
+            result = function.invoke(this, frame);
+        } finally {
+            frames.pop();
         }
 
-        // Unreachable.
-        return null;
+        return TailCall.run(this, result);
     }
 
-    @Override
-    public Object visitCallExpr(Expr.Call expr) {
+    // Evaluates a call in tail position without making it. The caller's
+    // trampoline makes it once this function's frame is gone.
+    private TailCall tailCall(Expr.Call expr, boolean discard) {
         Object callee = evaluate(expr.callee);
 
-        List<Object> arguments = new ArrayList<>();
-        for (Expr argument : expr.arguments) { // [in-order]
-            arguments.add(evaluate(argument));
+        Object[] arguments = evaluateArguments(expr);
+
+        MBasicCallable function = checkCallSite(expr, callee,
+                arguments.length);
+
+        return new TailCall(function, arguments, discard);
+    }
+
+    // Skips the checks for the callee the site has already seen.
+    MBasicCallable checkCallSite(Expr.Call expr, Object callee,
+                                 int argumentCount) {
+        if (callee == expr.cachedCallee && callee != null) {
+            return expr.cachedCallee;
         }
 
+        MBasicCallable function = checkCall(expr.paren, callee,
+                argumentCount);
+
+        expr.cachedCallee = function;
+        return function;
+    }
+
+    private Object[] evaluateArguments(Expr.Call expr) {
+        Object[] arguments = new Object[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) { // [in-order]
+            arguments[i] = evaluate(expr.arguments.get(i));
+        }
+        return arguments;
+    }
+
+    static MBasicCallable checkCall(Token paren, Object callee,
+                                    int argumentCount) {
         if (!(callee instanceof MBasicCallable)) {
-            throw new RuntimeError(expr.paren,
+            throw new RuntimeError(paren,
                     "Can only call functions.");
         }
 
 
         MBasicCallable function = (MBasicCallable)callee;
 
-        if (arguments.size() != function.arity()) {
-            throw new RuntimeError(expr.paren, "Expected " +
+        if (argumentCount != function.arity()) {
+            throw new RuntimeError(paren, "Expected " +
                     function.arity() + " arguments but got " +
-                    arguments.size() + ".");
+                    argumentCount + ".");
         }
 
-
-        return function.call(this, arguments);
+        return function;
     }
 
     @Override
@@ -363,20 +596,7 @@ public class Interpreter implements Expr.Visitor<Object>,
     public Object visitUnaryExpr(Expr.Unary expr) {
         Object right = evaluate(expr.right);
 
-        switch (expr.operator.type) {
-
-            case BANG:
-                return !isTruthy(right);
-
-            case MINUS:
-
-                checkNumberOperand(expr.operator, right);
-
-                return -(double)right;
-        }
-
-        // Unreachable.
-        return null;
+        return unary(expr.operator, right);
     }
 
     @Override
@@ -385,440 +605,302 @@ public class Interpreter implements Expr.Visitor<Object>,
     return environment.get(expr.name);
 */
 
-        return lookUpVariable(expr.name, expr);
+        return lookUpVariable(expr);
 
     }
 
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
+    private Object lookUpVariable(Expr.Variable expr) {
+        Object value;
+        if (expr.depth != -1) {
+            value = environment.getAt(expr.depth, expr.slot);
+        } else if (expr.capture != -1) {
+            value = environment.captures[expr.capture];
         } else {
-            return globals.get(name);
+            return expr.cell.get(expr.name);
         }
+
+        return expr.boxed ? ((Box)value).value : value;
     }
 
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+    public Object visitBlockStmt(Stmt.Block stmt) {
+        // A block that declares nothing runs in the current environment.
+        if (stmt.elided) return executeBlock(stmt.statements, environment);
+
+        return executeBlock(stmt.statements,
+                new Environment(environment, stmt.slotCount));
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
+    public Object visitExpressionStmt(Stmt.Expression stmt) {
+        if (isTailCall(stmt.expression)) {
+            // The last statement of the function, so it returns nil.
+            return tailCall((Expr.Call)stmt.expression, true);
+        }
+
         evaluate(stmt.expression);
-        return null;
+        return NORMAL;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
-        MBasicFunction function = new MBasicFunction(stmt, environment,
-                false);
+    public Object visitFunctionStmt(Stmt.Function stmt) {
+        // A boxed name gets its Box first, so a closure capturing the
+        // name can capture the Box.
+        Box box = null;
+        if (stmt.boxed) {
+            box = new Box(null);
+            environment.define(stmt.slot, box);
+        }
 
-        environment.define(stmt.name.lexeme, function);
-        return null;
+        Object[] captures = new Object[stmt.captures.size()];
+        MBasicFunction function = new MBasicFunction(stmt, captures);
+        environment.capture(stmt.captures, captures, function);
+
+        if (box != null) {
+            box.value = function;
+        } else if (stmt.slot != -1) {
+            environment.define(stmt.slot, function);
+        } else {
+            stmt.cell.define(function);
+        }
+        return NORMAL;
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
+    public Object visitIfStmt(Stmt.If stmt) {
         if (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
+            return execute(stmt.thenBranch);
         } else if (stmt.elseBranch != null) {
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
-        return null;
+        return NORMAL;
     }
 
     @Override
-    public Void visitNamespaceStmt(Stmt.Namespace stmt) {
-        return null;
+    public Object visitNamespaceStmt(Stmt.Namespace stmt) {
+        return NORMAL;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
+    public Object visitReturnStmt(Stmt.Return stmt) {
         Object value = null;
-        if (stmt.value != null) value = evaluate(stmt.value);
+        if (isTailCall(stmt.value)) {
+            value = tailCall((Expr.Call)stmt.value, false);
+        } else if (stmt.value != null) {
+            value = evaluate(stmt.value);
+        }
+
+        return value;
+    }
 
-        throw new Return(value);
+    private static boolean isTailCall(Expr expr) {
+        return expr instanceof Expr.Call && ((Expr.Call)expr).isTailCall;
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Object visitVarStmt(Stmt.Var stmt) {
         Object value = null;
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
         }
 
-        environment.define(stmt.name.lexeme, value);
-        return null;
-    }
-
-    private void checkNumberOperand(Token operator, Object operand) {
-        if (operand instanceof Double) return;
-        if (operand instanceof Integer) return;
-        throw new RuntimeError(operator, "Operand must be a number.");
+        if (stmt.slot != -1) {
+            environment.define(stmt.slot, stmt.boxed ? new Box(value) : value);
+        } else {
+            stmt.cell.define(value);
+        }
+        return NORMAL;
     }
 
+    // Shared by every backend so they agree on operator semantics.
+    static Object binary(Token operator, Object left, Object right) {
+        int type;
 
-    private int checkNumberOperands(Token operator,
-                                     Object left, Object right) {
-        // 0: Double
-        // 1: Integer
-        // 2: Hexadecimal
-        // 3: Binary
-        if (left instanceof Double && right instanceof Double) return 0;
-        if (left instanceof Integer && right instanceof Integer) return 1;
-        if (MiscMath.isHex(left.toString()) && MiscMath.isHex(right.toString())) return 2;
-        if (MiscMath.isBin(left.toString()) && MiscMath.isBin(right.toString())) return 3;
-        if (left instanceof Integer && right instanceof Double) return 4;
-        if (left instanceof Double && right instanceof Integer) return 5;
-        // [operand]
-        throw new RuntimeError(operator, "Operands must be numbers.");
-    }
+        switch (operator.type) {
+            case BANG_EQUAL: return !isEqual(left, right);
+            case EQUAL_EQUAL: return isEqual(left, right);
 
 
-    private boolean isTruthy(Object object) {
-        if (object == null) return false;
-        if (object instanceof Boolean) return (boolean)object;
-        return true;
-    }
+            case GREATER:
 
+                type = checkNumberOperands(operator, left, right);
 
-    private boolean isEqual(Object a, Object b) {
-        if (a == null && b == null) return true;
-        if (a == null) return false;
+                if (type == 2 || type == 3) return bits(left) > bits(right);
+                return type == 0 ? (double)left > (double)right
+                        : (int)left > (int)right;
+            case GREATER_EQUAL:
 
-        return a.equals(b);
-    }
+                type = checkNumberOperands(operator, left, right);
 
+                if (type == 2 || type == 3) return bits(left) >= bits(right);
+                return type == 0 ? (double)left >= (double)right
+                        : (int)left >= (int)right;
+            case LESS:
 
-    private String stringify(Object object) {
-        if (object == null) return "nil";
+                type = checkNumberOperands(operator, left, right);
 
-        if (object instanceof Double) {
-            String text = object.toString();
-            if (text.endsWith(".0")) {
-                text = text.substring(0, text.length() - 2);
-            }
-            return text;
-        }
-
-        return object.toString();
-    }
+                if (type == 2 || type == 3) return bits(left) < bits(right);
+                return type == 0 ? (double)left < (double)right
+                        : (int)left < (int)right;
+            case LESS_EQUAL:
 
-    private static class MiscMath {
+                type = checkNumberOperands(operator, left, right);
 
-        public static void main(String[] args){
-            System.out.println(hexAdd("0x126", "0xAB1"));
-        }
+                if (type == 2 || type == 3) return bits(left) <= bits(right);
+                return type == 0 ? (double)left <= (double)right
+                        : (int)left <= (int)right;
+            case MINUS:
 
-        // turn this hashmap into an ArrayList?
-        static List<Character> HexValues = new ArrayList<>();
+                type = checkNumberOperands(operator, left, right);
 
-        static {
-            HexValues.add('0');
-            HexValues.add('1');
-            HexValues.add('2');
-            HexValues.add('3');
-            HexValues.add('4');
-            HexValues.add('5');
-            HexValues.add('6');
-            HexValues.add('7');
-            HexValues.add('8');
-            HexValues.add('9');
-            HexValues.add('A');
-            HexValues.add('B');
-            HexValues.add('C');
-            HexValues.add('D');
-            HexValues.add('E');
-            HexValues.add('F');
-        }
+                // Written as separate returns: a single conditional
+                // expression promoted the int result to a double.
+                if (type == 2) return new Hex(bits(left) - bits(right));
+                if (type == 3) return new Bin(bits(left) - bits(right));
+                if (type == 0) return (double)left - (double)right;
+                return (int)left - (int)right;
+            case PLUS:
+                if (left instanceof Double && right instanceof Double) {
+                    return (double)left + (double)right;
+                } // [plus]
 
-        public static boolean isHex(String hex){
-            if(!hex.startsWith("0x")){
-                return false;
-            }
-            for(char c : hex.substring(3).toCharArray()){
-                if(!(c >= 'A' && c <= 'F' || c >= '0' && c <= '9')){
-                    return false;
+                if (left instanceof Integer && right instanceof Integer) {
+                    return (Integer)left + (Integer)right;
                 }
-            }
-            return true;
-        }
 
-        public static boolean isBin(String bin){
-            if(!bin.startsWith("0b")){
-                return false;
-            }
-            for(char c : bin.substring(3).toCharArray()){
-                if(!(c == '0' || c == '1')){
-                    return false;
+                if (left instanceof Hex && right instanceof Hex) {
+                    return new Hex(bits(left) + bits(right));
                 }
-            }
-            return true;
-        }
-
-        private static String reverseString(String str){
-            char ch;
-            String nstr = "";
-            for (int i=0; i<str.length(); i++)
-            {
-                ch = str.charAt(i); //extracts each character
-                nstr = ch + nstr; //adds each character in front of the existing string
-            }
-            return nstr;
-        }
-
-        public static String decToHex(int dec){
-            StringBuilder convertedHex = new StringBuilder();
 
-            for(int i = dec; i >= 1; i /= 16){
-                char hexDigit = HexValues.get(i%16);
-                convertedHex.append(hexDigit);
-            }
-
-            convertedHex.append("x0");
-
-            return reverseString(convertedHex.toString());
-        }
+                if (left instanceof Bin && right instanceof Bin) {
+                    return new Bin(bits(left) + bits(right));
+                }
 
-        public static String decToBin(int bin){
-            StringBuilder convertedBin = new StringBuilder();
+                if (left instanceof String && right instanceof String) {
+                    return (String)left + (String)right;
+                }
 
-            for(int i = bin; i >= 1; i /= 2){
-                int binDigit = i%2;
-                convertedBin.append(binDigit);
-            }
+/* Evaluating Expressions binary-plus < Evaluating Expressions string-wrong-type
+        break;
+*/
 
-            convertedBin.append("b0");
+                throw new RuntimeError(operator,
+                        "Operands must be two numbers or two strings.");
 
-            return reverseString(convertedBin.toString());
-        }
 
-        public static int hexToDec(String hex){
-            if(!hex.startsWith("0x")){
-                throw new RuntimeError(new Token(null, hex, null, -1), "Expected hexadecimal value.");
-            }
+            case SLASH:
 
-            String part = reverseString(hex.substring(2)).toUpperCase();
-            char[] parts = part.toCharArray();
-            int minisum = 0;
-            for(int i = 0; i < part.length(); i++){
-                minisum += Math.pow(16, i) * HexValues.indexOf(parts[i]);
-            }
+                checkNumberOperands(operator, left, right);
 
-            return minisum;
-        }
+                return (double)left / (double)right;
+            case STAR:
 
-        public static int binToDec(String bin){
-            if(!bin.startsWith("0b")){
-                throw new RuntimeError(new Token(null, bin, null, -1), "Expected binary value.");
-            }
+                checkNumberOperands(operator, left, right);
 
-            String part = reverseString(bin.substring(2)).toUpperCase();
-            char[] parts = part.toCharArray();
-            int minisum = 0;
-            for(int i = 0; i < part.length(); i++){
-                minisum += Math.pow(2, i) * Integer.parseInt(String.valueOf(parts[i]));
-            }
-            return minisum;
-        }
+                return (double)left * (double)right;
+            case PERCENT:
 
-        public static String hexAdd(String... hexNums){
-            int sum = 0;
-            for(String num : hexNums){
-                if(!num.startsWith("0x")){
-                    throw new RuntimeError(new Token(null, num, null, -1), "Expected hexadecimal value.");
-                }
+                checkNumberOperands(operator, left, right);
 
-                String part = reverseString(num.substring(2)).toUpperCase();
-                char[] parts = part.toCharArray();
-                int minisum = 0;
-                for(int i = 0; i < part.length(); i++){
-                    minisum += Math.pow(16, i) * HexValues.indexOf(parts[i]);
-                }
-                sum += minisum;
-            }
+                return (Integer)left % (Integer)right;
+            case BITWISE_OR:
 
-            StringBuilder convertedHex = new StringBuilder();
+                type = checkBitOperands(operator, left, right);
 
-            for(int i = sum; i >= 1; i /= 16){
-                char hexDigit = HexValues.get(i%16);
-                convertedHex.append(hexDigit);
-            }
+                return type == 2 ? new Hex(bits(left) | bits(right))
+                        : new Bin(bits(left) | bits(right));
+            case BITWISE_AND:
 
-            convertedHex.append("x0");
+                type = checkBitOperands(operator, left, right);
 
-            return reverseString(convertedHex.toString());
+                return type == 2 ? new Hex(bits(left) & bits(right))
+                        : new Bin(bits(left) & bits(right));
         }
 
-        public static String hexSubtract(String hexNum1, String hexNum2){
-            int sum = 0;
-
-            //hexNum1
-            if(!hexNum1.startsWith("0x")){
-                throw new RuntimeError(new Token(null, hexNum1, null, -1), "Expected hexadecimal value.");
-            }
-            String part = reverseString(hexNum1.substring(2)).toUpperCase();
-            char[] parts = part.toCharArray();
-            int minisum = 0;
-            for(int i = 0; i < part.length(); i++){
-                minisum += Math.pow(16, i) * HexValues.indexOf(parts[i]);
-            }
-            sum += minisum;
-
-            int subtractend = 0;
-
-            //hexNum2
-            if(!hexNum1.startsWith("0x")){
-                throw new RuntimeError(new Token(null, hexNum2, null, -1), "Expected hexadecimal value.");
-            }
-            part = reverseString(hexNum2.substring(2)).toUpperCase();
-            parts = part.toCharArray();
-            minisum = 0;
-            for(int i = 0; i < part.length(); i++){
-                minisum += Math.pow(16, i) * HexValues.indexOf(parts[i]);
-            }
-            subtractend += minisum;
+        // Unreachable.
+        return null;
+    }
 
-            sum -= subtractend;
+    static Object unary(Token operator, Object right) {
+        switch (operator.type) {
 
-            StringBuilder convertedHex = new StringBuilder();
+            case BANG:
+                return !isTruthy(right);
 
-            for(int i = Math.abs(sum); i >= 1; i /= 16){
-                char hexDigit = HexValues.get(i%16);
-                convertedHex.append(hexDigit);
-            }
+            case MINUS:
 
-            convertedHex.append("x0");
+                checkNumberOperand(operator, right);
 
-            return reverseString(convertedHex.toString());
+                return -(double)right;
         }
 
-        public static String binAdd(String... binNums){
-            int sum = 0;
-            for(String num : binNums){
-                if(!num.startsWith("0b")){
-                    throw new RuntimeError(new Token(null, num, null, -1), "Expected binary value.");
-                }
+        // Unreachable.
+        return null;
+    }
 
-                String part = reverseString(num.substring(2)).toUpperCase();
-                char[] parts = part.toCharArray();
-                int minisum = 0;
-                for(int i = 0; i < part.length(); i++){
-                    minisum += Math.pow(2, i) * Integer.parseInt(String.valueOf(parts[i]));
-                }
-                sum += minisum;
-            }
+    private static void checkNumberOperand(Token operator, Object operand) {
+        if (operand instanceof Double) return;
+        if (operand instanceof Integer) return;
+        throw new RuntimeError(operator, "Operand must be a number.");
+    }
 
-            StringBuilder convertedBin = new StringBuilder();
 
-            for(int i = sum; i >= 1; i /= 2){
-                int binDigit = i%2;
-                convertedBin.append(binDigit);
-            }
+    private static int checkNumberOperands(Token operator,
+                                     Object left, Object right) {
+        // 0: Double
+        // 1: Integer
+        // 2: Hexadecimal
+        // 3: Binary
+        if (left instanceof Double && right instanceof Double) return 0;
+        if (left instanceof Integer && right instanceof Integer) return 1;
+        if (left instanceof Hex && right instanceof Hex) return 2;
+        if (left instanceof Bin && right instanceof Bin) return 3;
+        if (left instanceof Integer && right instanceof Double) return 4;
+        if (left instanceof Double && right instanceof Integer) return 5;
+        // [operand]
+        throw new RuntimeError(operator, "Operands must be numbers.");
+    }
 
-            convertedBin.append("b0");
 
-            return reverseString(convertedBin.toString());
-        }
+    private static int checkBitOperands(Token operator,
+                                        Object left, Object right) {
+        if (left instanceof Hex && right instanceof Hex) return 2;
+        if (left instanceof Bin && right instanceof Bin) return 3;
+        throw new RuntimeError(operator,
+                "Operands must be two hexadecimal or two binary values.");
+    }
 
-        public static String binSubtract(String binNum1, String binNum2){
-            int sum = 0;
+    private static long bits(Object value) {
+        return value instanceof Hex ? ((Hex)value).value : ((Bin)value).value;
+    }
 
-            //binNum1
-            if(!binNum1.startsWith("0b")){
-                throw new RuntimeError(new Token(null, binNum1, null, -1), "Expected binary value.");
-            }
-            String part = reverseString(binNum1.substring(2)).toUpperCase();
-            char[] parts = part.toCharArray();
-            int minisum = 0;
-            for(int i = 0; i < part.length(); i++){
-                minisum += Math.pow(2, i) * Integer.parseInt(String.valueOf(parts[i]));
-            }
-            sum += minisum;
 
-            //binNum2
-            if(!binNum2.startsWith("0b")){
-                throw new RuntimeError(new Token(null, binNum2, null, -1), "Expected binary value.");
-            }
-            part = reverseString(binNum2.substring(2)).toUpperCase();
-            parts = part.toCharArray();
-            minisum = 0;
-            for(int i = 0; i < part.length(); i++){
-                minisum += Math.pow(2, i) * Integer.parseInt(String.valueOf(parts[i]));
-            }
-            sum -= minisum;
+    static boolean isTruthy(Object object) {
+        if (object == null) return false;
+        if (object instanceof Boolean) return (boolean)object;
+        return true;
+    }
 
-            StringBuilder convertedBin = new StringBuilder();
 
-            for(int i = sum; i >= 1; i /= 2){
-                int binDigit = i%2;
-                convertedBin.append(binDigit);
-            }
+    static boolean isEqual(Object a, Object b) {
+        if (a == null && b == null) return true;
+        if (a == null) return false;
 
-            convertedBin.append("b0");
+        return a.equals(b);
+    }
 
-            return reverseString(convertedBin.toString());
-        }
 
-        public static String binAnd(String binNum1, String binNum2){
-            if(!binNum1.startsWith("0b")){
-                throw new RuntimeError(new Token(null, binNum1, null, -1), "Expected binary value.");
-            }
-            if(!binNum2.startsWith("0b")){
-                throw new RuntimeError(new Token(null, binNum2, null, -1), "Expected binary value.");
-            }
+    private String stringify(Object object) {
+        if (object == null) return "nil";
 
-            StringBuilder binResult = new StringBuilder();
-            int length = Math.max(binNum1.substring(2).length(), binNum2.substring(2).length());
-            char[] bin1 = reverseString(binNum1).toCharArray();
-            char[] bin2 = reverseString(binNum2).toCharArray();
-            for(int i = 0; i < length; i++){
-                try {
-                    if(bin1[i] == bin2[i] && bin1[i] == '1'){
-                        binResult.append("1");
-                    } else {
-                        binResult.append("0");
-                    }
-                } catch(IndexOutOfBoundsException ex){
-                    binResult.append("0");
-                }
+        if (object instanceof Double) {
+            String text = object.toString();
+            if (text.endsWith(".0")) {
+                text = text.substring(0, text.length() - 2);
             }
-            binResult.append("b0");
-            return reverseString(binResult.toString());
+            return text;
         }
 
-        public static String binOr(String binNum1, String binNum2){
-            if(!binNum1.startsWith("0b")){
-                throw new RuntimeError(new Token(null, binNum1, null, -1), "Expected binary value.");
-            }
-            if(!binNum2.startsWith("0b")){
-                throw new RuntimeError(new Token(null, binNum2, null, -1), "Expected binary value.");
-            }
-
-            StringBuilder binResult = new StringBuilder();
-            int length = Math.max(binNum1.substring(2).length(), binNum2.substring(2).length());
-            char[] bin1 = reverseString(binNum1).toCharArray();
-            char[] bin2 = reverseString(binNum2).toCharArray();
-            for(int i = 0; i < length; i++){
-                try {
-                    if(bin1[i] == bin2[i] && bin1[i] == '0'){
-                        binResult.append("0");
-                    } else {
-                        binResult.append("1");
-                    }
-                } catch(IndexOutOfBoundsException ex){
-                    boolean bin1Bigger = bin1.length > bin2.length;
-                    if(bin1Bigger){
-                        binResult.append(bin1[i]);
-                    } else {
-                        binResult.append(bin2[i]);
-                    }
-                }
-            }
-            binResult.append("b0");
-            return reverseString(binResult.toString());
-        }
+        return object.toString();
     }
 }
@@ -0,0 +1,276 @@
+package com.micharksi.mbasic;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.micharksi.mbasic.ClassEmitter.*;
+
+// Compiles hot MBasicFunctions into JVM classes defined in this package.
+// The generated class implements MBasicCallable and keeps the function's
+// locals in JVM locals, so HotSpot can optimize the body like Java code.
+// Functions that declare nested functions stay interpreted, so none of a
+// compiled function's own locals is ever captured or boxed; its captures
+// are read from the array the closure was created with.
+class Jit extends MethodCompiler {
+    static final int THRESHOLD = 1000;
+
+    private static final String CLASS = PACKAGE + "JitFunction$";
+    private static final String FUNCTION = PACKAGE + "MBasicFunction";
+    private static final String CALL_SITE = PACKAGE + "Expr$Call";
+
+    private static final String CALL =
+            "(L" + INTERPRETER + ";" + ARRAY + ")L" + OBJECT + ";";
+
+    private static final int THIS = 0;
+
+    // Compiled classes are named by their number, as each is defined
+    // in the same class loader.
+    private static int classCount = 0;
+
+    private final ClassEmitter emitter;
+
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndex = new IdentityHashMap<>();
+
+    private Jit(Stmt.Function function, ClassEmitter emitter) {
+        super(function, emitter.method(ACC_PUBLIC, "call", CALL), JIT,
+                INTERPRETER_LOCAL, DISCARD + 1);
+        this.emitter = emitter;
+    }
+
+    private Jit(Stmt.Function function) {
+        this(function, new ClassEmitter(ACC_FINAL | ACC_SUPER,
+                CLASS + classCount++, OBJECT,
+                "com/micharksi/mbasic/MBasicCallable"));
+    }
+
+    // Counts a call to an interpreted function and says whether it should
+    // now be compiled.
+    static boolean isHot(Stmt.Function declaration) {
+        return !declaration.uncompilable && ++declaration.calls >= THRESHOLD;
+    }
+
+    // Returns a compiled version of the function, or null if its body uses
+    // something the Jit does not handle or its class fails to load, in
+    // which case it stays interpreted.
+    static MBasicCallable compile(Stmt.Function declaration,
+                                  Object[] captures, MBasicFunction self) {
+        try {
+            if (declaration.compiled == null) {
+                declaration.compiled = new Jit(declaration).define();
+            }
+
+            return (MBasicCallable)declaration.compiled.invoke(captures, self);
+        } catch (Unsupported | IllegalStateException | LinkageError
+                | ReflectiveOperationException error) {
+            declaration.uncompilable = true;
+            return null;
+        } catch (Throwable error) {
+            throw new IllegalStateException(error);
+        }
+    }
+
+    private static class Unsupported extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    // Generates the class and returns its constructor with the constant
+    // pool already bound, taking (captures, self).
+    private MethodHandle define() throws ReflectiveOperationException {
+        emitter.field(ACC_PRIVATE | ACC_FINAL, "constants", "[L" + OBJECT + ";");
+        emitter.field(ACC_PRIVATE | ACC_FINAL, "captures", ARRAY);
+        emitter.field(ACC_PRIVATE | ACC_FINAL, "self", "L" + FUNCTION + ";");
+
+        ClassEmitter.Method init = emitter.method(ACC_PUBLIC, "<init>",
+                "([L" + OBJECT + ";" + ARRAY + "L" + FUNCTION + ";)V");
+        init.aload(THIS);
+        init.invoke(INVOKESPECIAL, OBJECT, "<init>", "()V");
+        init.aload(THIS);
+        init.aload(1);
+        init.field(PUTFIELD, emitter.name, "constants", "[L" + OBJECT + ";");
+        init.aload(THIS);
+        init.aload(2);
+        init.field(PUTFIELD, emitter.name, "captures", ARRAY);
+        init.aload(THIS);
+        init.aload(3);
+        init.field(PUTFIELD, emitter.name, "self", "L" + FUNCTION + ";");
+        init.op(RETURN, 0);
+
+        ClassEmitter.Method arity = emitter.method(ACC_PUBLIC, "arity", "()I");
+        arity.iconst(function.params.size());
+        arity.op(IRETURN, -1);
+
+        compileBody();
+
+        Class<?> compiled = MethodHandles.lookup()
+                .defineClass(emitter.toBytes());
+        MethodHandle constructor = MethodHandles.lookup().findConstructor(
+                compiled, MethodType.methodType(void.class,
+                        Object[].class, Object[].class, MBasicFunction.class));
+
+        return MethodHandles.insertArguments(constructor, 0,
+                (Object)constants.toArray());
+    }
+
+    private void loadConstant(Object value, String type) {
+        Integer index = constantIndex.get(value);
+        if (index == null) {
+            index = constants.size();
+            constants.add(value);
+            constantIndex.put(value, index);
+        }
+
+        method.aload(THIS);
+        method.field(GETFIELD, emitter.name, "constants", "[L" + OBJECT + ";");
+        method.iconst(index);
+        method.op(AALOAD, -1);
+        if (type != null) method.type(CHECKCAST, type);
+    }
+
+    @Override
+    void loadToken(Token token) {
+        loadConstant(token, TOKEN);
+    }
+
+    @Override
+    void loadCell(Cell cell, Token name) {
+        loadConstant(cell, CELL);
+    }
+
+    @Override
+    void loadCaptures() {
+        method.aload(THIS);
+        method.field(GETFIELD, emitter.name, "captures", ARRAY);
+    }
+
+    @Override
+    void loadLiteral(Object value) {
+        loadConstant(value, null);
+    }
+
+    @Override
+    String loadCallSite(Expr.Call expr) {
+        loadConstant(expr, CALL_SITE);
+        return "L" + CALL_SITE + ";";
+    }
+
+    // This function is the closure it was compiled for.
+    @Override
+    boolean checkSelf(Expr.Call expr, int callee, ClassEmitter.Label other) {
+        if (expr.arguments.size() != function.params.size()) return false;
+
+        method.aload(callee);
+        method.aload(THIS);
+        method.field(GETFIELD, emitter.name, "self", "L" + FUNCTION + ";");
+        method.jump(IF_ACMPNE, other);
+        return true;
+    }
+
+    @Override
+    void invokeSelf(int callee, int arguments) {
+        method.aload(THIS);
+        method.aload(INTERPRETER_LOCAL);
+        method.aload(arguments);
+        method.invoke(INVOKEVIRTUAL, emitter.name, "call", CALL);
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        throw new Unsupported();
+    }
+
+    // Runtime support called from generated code. The operator helpers are
+    // small enough for HotSpot to inline and fall back on the Interpreter's
+    // shared semantics for anything but two ints or two doubles.
+
+    static Object call(Object callee, Object[] arguments,
+                       Interpreter interpreter, Expr.Call site) {
+        return interpreter.checkCallSite(site, callee, arguments.length)
+                .call(interpreter, arguments);
+    }
+
+    static Object tailCall(Object callee, Object[] arguments,
+                           Interpreter interpreter, Expr.Call site,
+                           boolean discard) {
+        return new TailCall(
+                interpreter.checkCallSite(site, callee, arguments.length),
+                arguments, discard);
+    }
+
+    static Object add(Object left, Object right, Token operator) {
+        if (left instanceof Integer && right instanceof Integer) {
+            return (Integer)left + (Integer)right;
+        }
+        if (left instanceof Double && right instanceof Double) {
+            return (Double)left + (Double)right;
+        }
+        return Interpreter.binary(operator, left, right);
+    }
+
+    static Object subtract(Object left, Object right, Token operator) {
+        if (left instanceof Integer && right instanceof Integer) {
+            return (Integer)left - (Integer)right;
+        }
+        if (left instanceof Double && right instanceof Double) {
+            return (Double)left - (Double)right;
+        }
+        return Interpreter.binary(operator, left, right);
+    }
+
+    static Object less(Object left, Object right, Token operator) {
+        if (left instanceof Integer && right instanceof Integer) {
+            return (Integer)left < (Integer)right;
+        }
+        if (left instanceof Double && right instanceof Double) {
+            return (Double)left < (Double)right;
+        }
+        return Interpreter.binary(operator, left, right);
+    }
+
+    static Object lessEqual(Object left, Object right, Token operator) {
+        if (left instanceof Integer && right instanceof Integer) {
+            return (Integer)left <= (Integer)right;
+        }
+        if (left instanceof Double && right instanceof Double) {
+            return (Double)left <= (Double)right;
+        }
+        return Interpreter.binary(operator, left, right);
+    }
+
+    static Object greater(Object left, Object right, Token operator) {
+        if (left instanceof Integer && right instanceof Integer) {
+            return (Integer)left > (Integer)right;
+        }
+        if (left instanceof Double && right instanceof Double) {
+            return (Double)left > (Double)right;
+        }
+        return Interpreter.binary(operator, left, right);
+    }
+
+    static Object greaterEqual(Object left, Object right, Token operator) {
+        if (left instanceof Integer && right instanceof Integer) {
+            return (Integer)left >= (Integer)right;
+        }
+        if (left instanceof Double && right instanceof Double) {
+            return (Double)left >= (Double)right;
+        }
+        return Interpreter.binary(operator, left, right);
+    }
+
+    static Object binary(Object left, Object right, Token operator) {
+        return Interpreter.binary(operator, left, right);
+    }
+
+    static Object unary(Object right, Token operator) {
+        return Interpreter.unary(operator, right);
+    }
+}
@@ -1,9 +1,14 @@
 package com.micharksi.mbasic;
 
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Scanner;
 
@@ -12,13 +17,83 @@ import static java.lang.System.exit;
 public class MBasic {
 
     private static final Interpreter interpreter = new Interpreter();
+    private static final VM vm = new VM(interpreter);
+
+    // Run programs on the bytecode VM instead of the tree-walker.
+    static boolean useVm = false;
+
+    // Compile hot functions to JVM bytecode when tree-walking.
+    static boolean useJit = true;
+
+    // Rewrite programs with the Optimizer before they run. Without it,
+    // programs run as written, which optimized runs must agree with.
+    static boolean useOptimizer = true;
+
+    // Let the Optimizer inline calls to small functions.
+    static boolean useInlining = true;
+
+    // Let the Optimizer compute repeated pure expressions once.
+    static boolean useCse = true;
+
+    // Tokenize a file as it is read and parsed, rather than reading it
+    // whole first. The token list is not printed then.
+    static boolean useStreaming = false;
+
+    // Tokenize and parse large files in chunks on several threads.
+    static boolean useParallelParsing = true;
+
+    // Load a file's resolved statements from the cache beside it when the
+    // source is unchanged, and write them there when it is not.
+    static boolean useCache = true;
+
+    // Set when running a file, which is then the whole program: top-level
+    // functions nothing refers to can be dropped. At the prompt a later
+    // entry may still call them.
+    private static boolean wholeProgram = false;
     static boolean compileError = false;
+    // Set once the Tokenizer has reported an error it recovers from, which
+    // a run from the cache would not report again.
+    private static boolean scanError = false;
     static boolean runtimeError = false;
 
     public static void main(String[] args) throws IOException {
-        switch(args.length){
+        List<String> paths = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--vm")) {
+                useVm = true;
+            } else if (arg.equals("--no-jit")) {
+                useJit = false;
+            } else if (arg.equals("--no-optimize")) {
+                useOptimizer = false;
+            } else if (arg.equals("--no-inline")) {
+                useInlining = false;
+            } else if (arg.equals("--no-cse")) {
+                useCse = false;
+            } else if (arg.equals("--stream")) {
+                useStreaming = true;
+            } else if (arg.equals("--no-parallel-parse")) {
+                useParallelParsing = false;
+            } else if (arg.equals("--no-cache")) {
+                useCache = false;
+            } else {
+                paths.add(arg);
+            }
+        }
+
+        if (!paths.isEmpty() && paths.get(0).equals("compile")) {
+            if (paths.size() == 2 || paths.size() == 3) {
+                compilePath(paths.get(1),
+                        paths.size() == 3 ? paths.get(2) : null);
+            } else {
+                System.out.println(
+                        "Usage: compile <script> [<jar or directory>]");
+            }
+            return;
+        }
+
+        switch(paths.size()){
             case 1:
-                runPath(args[0]);
+                runPath(paths.get(0));
                 break;
             case 0:
                 runPrompt();
@@ -29,8 +104,28 @@ public class MBasic {
     }
 
     public static void runPath(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        wholeProgram = true;
+        if (useStreaming) {
+            try (Reader reader = new InputStreamReader(
+                    Files.newInputStream(Paths.get(path)),
+                    Charset.defaultCharset())) {
+                run(new Tokenizer(reader), false);
+            } catch (UncheckedIOException error) {
+                throw error.getCause();
+            }
+        } else {
+            byte[] bytes = Files.readAllBytes(Paths.get(path));
+            String source = new String(bytes, Charset.defaultCharset());
+
+            AstCache cache = useCache
+                    ? new AstCache(Paths.get(path), source) : null;
+            if (cache != null && cache.load(interpreter.globals)) {
+                System.out.println(cache.tokens());
+                execute(cache.statements());
+            } else {
+                runSource(source, cache);
+            }
+        }
 
 
         // Indicate an error in the exit code.
@@ -41,22 +136,108 @@ public class MBasic {
 
     }
 
+    // Compiles a file ahead of time into output, by default a jar next to
+    // it, to run without the source. See Aot.
+    public static void compilePath(String path, String output)
+            throws IOException {
+        wholeProgram = true;
+        Path script = Paths.get(path);
+        byte[] bytes = Files.readAllBytes(script);
+        String source = new String(bytes, Charset.defaultCharset());
+
+        String name = script.getFileName().toString();
+        if (name.endsWith(".mb")) name = name.substring(0, name.length() - 3);
+        Path target = output != null ? Paths.get(output)
+                : script.resolveSibling(name + ".jar");
+
+        Aot.compile(resolve(parse(source, false).statements), name, target);
+
+        if (compileError) System.exit(65);
+    }
+
+    // A parsed file, with its tokens listed if they were asked for.
+    private static class Parsed {
+        final String tokens;
+        final List<Stmt> statements;
+
+        Parsed(String tokens, List<Stmt> statements) {
+            this.tokens = tokens;
+            this.statements = statements;
+        }
+    }
+
+    // Parses a whole file, on several threads if it is large enough and
+    // parallel parsing is on.
+    private static Parsed parse(String source, boolean listTokens){
+        if (useParallelParsing) {
+            ParallelParser parallel = new ParallelParser(source);
+            if (parallel.parse()) {
+                return new Parsed(listTokens ? parallel.tokens() : null,
+                        parallel.statements());
+            }
+        }
+
+        TokenStream stream = new Tokenizer(source).scanTokens();
+        return new Parsed(listTokens ? stream.toString() : null,
+                new Parser(stream).parse());
+    }
+
+    // Parses a whole file and saves what is resolved to cache unless that
+    // is null.
+    private static void runSource(String source, AstCache cache){
+        Parsed parsed = parse(source, true);
+        System.out.println(parsed.tokens);
+
+        List<Stmt> statements = resolve(parsed.statements);
+        if (cache != null && !scanError) cache.save(parsed.tokens, statements);
+        execute(statements);
+    }
+
     public static void run(String source){
-        Tokenizer tokenizer = new Tokenizer(source);
-        List<Token> tokens = tokenizer.scanTokens();
-        System.out.println(tokens);
+        run(new Tokenizer(source), true);
+    }
+
+    // Printing the tokens scans them all before parsing starts.
+    private static void run(Tokenizer tokenizer, boolean printTokens){
+        TokenStream tokens = tokenizer.scanTokens();
+        if (printTokens) System.out.println(tokens);
 
         Parser parser = new Parser(tokens);
-        List<Stmt> statements = parser.parse();
+        run(parser.parse());
+    }
+
+    private static void run(List<Stmt> statements){
+        execute(resolve(statements));
+    }
 
+    // Resolves and optimizes the statements, exiting on a compile error.
+    private static List<Stmt> resolve(List<Stmt> statements){
         if(compileError) error();
 
-        Resolver resolver = new Resolver(interpreter);
+        Resolver resolver = new Resolver(interpreter.globals);
         resolver.resolve(statements);
 
         if(compileError) error();
 
-        interpreter.interpret(statements);
+        if (!useOptimizer) return statements;
+
+        // The optimizer works from the bindings just resolved, and what it
+        // rewrites is resolved again.
+        statements = new Optimizer(wholeProgram, resolver).optimize(statements);
+        new Resolver(interpreter.globals).resolve(statements);
+        return statements;
+    }
+
+    private static void execute(List<Stmt> statements){
+        if (useVm) {
+            Chunk script = new Compiler().compile(statements);
+
+            if(compileError) error();
+
+            vm.interpret(script);
+        } else {
+            interpreter.interpret(statements);
+        }
 
         if(compileError) error();
     }
@@ -87,6 +268,9 @@ public class MBasic {
     }
 
     public static void error(int line, String message){
+        if (ParallelParser.absorb()) return;
+
+        scanError = true;
         System.out.println("Line #" + line + ">> " + message);
     }
 
@@ -100,6 +284,8 @@ public class MBasic {
 
     private static void report(int line, String where,
                                String message) {
+        if (ParallelParser.absorb()) return;
+
         System.err.println(
                 "[line " + line + "] Error" + where + ": " + message);
         compileError = true;
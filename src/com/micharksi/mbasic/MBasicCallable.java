@@ -1,10 +1,10 @@
 package com.micharksi.mbasic;
 
-import java.util.List;
-
 interface MBasicCallable {
 
     int arity();
 
-    Object call(Interpreter interpreter, List<Object> arguments);
+    // The arguments arrive in a fresh array of exactly arity() elements,
+    // which the callee may keep.
+    Object call(Interpreter interpreter, Object[] arguments);
 }
\ No newline at end of file
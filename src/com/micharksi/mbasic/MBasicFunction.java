@@ -5,24 +5,20 @@ import java.util.List;
 class MBasicFunction implements MBasicCallable {
     private final Stmt.Function declaration;
 
-    private final Environment closure;
+    // The free variables of the body, laid out as declaration.captures
+    // describes.
+    private final Object[] captures;
+
+    // Set once the Jit has compiled this function's body.
+    private MBasicCallable compiled;
   
  
 /* Functions MBasic-function < Functions closure-constructor
   MBasicFunction(Stmt.Function declaration) {
 */
-/* Functions closure-constructor < Classes is-initializer-field
-  MBasicFunction(Stmt.Function declaration, Environment closure) {
-*/
-
-    private final boolean isInitializer;
 
-    MBasicFunction(Stmt.Function declaration, Environment closure,
-                boolean isInitializer) {
-        this.isInitializer = isInitializer;
-
-
-        this.closure = closure;
+    MBasicFunction(Stmt.Function declaration, Object[] captures) {
+        this.captures = captures;
 
         this.declaration = declaration;
     }
@@ -42,37 +38,63 @@ class MBasicFunction implements MBasicCallable {
 
     @Override
     public Object call(Interpreter interpreter,
-                       List<Object> arguments) {
+                       Object[] arguments) {
+        return TailCall.run(interpreter, invoke(interpreter, arguments));
+    }
+
+
+    // Runs the body once. The result is either the function's value or a
+    // TailCall for the trampoline to make.
+    Object invoke(Interpreter interpreter, Object[] arguments) {
 /* Functions function-call < Functions call-closure
     Environment environment = new Environment(interpreter.globals);
 */
 
-        Environment environment = new Environment(closure);
-
-        for (int i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i).lexeme,
-                    arguments.get(i));
-        }
-
-/* Functions function-call < Functions catch-return
-    interpreter.executeBlock(declaration.body, environment);
-*/
+        if (isCompiled()) return compiled.call(interpreter, arguments);
 
+        FrameStack frames = interpreter.frames;
+        Environment frame = frames.push(declaration.slotCount);
         try {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (Return returnValue) {
+            for (int i = 0; i < arguments.length; i++) {
+                frame.define(i, arguments[i]);
+            }
+            return invoke(interpreter, frame);
+        } finally {
+            frames.pop();
+        }
+    }
 
-            if (isInitializer) return closure.getAt(0, "this");
 
+    // As above, for a caller that has already pushed a frame and stored
+    // the arguments in its first slots. The body runs here rather than in
+    // a helper, as each Java frame on an interpreted call costs recursion
+    // depth.
+    Object invoke(Interpreter interpreter, Environment frame) {
+        if (isCompiled()) {
+            return compiled.call(interpreter, frame.arguments(arity()));
+        }
 
-            return returnValue.value;
+        frame.enter(captures, declaration.slotCount);
+        List<Integer> boxed = declaration.boxedParams;
+        for (int i = 0; i < boxed.size(); i++) {
+            int slot = boxed.get(i);
+            frame.define(slot, new Box(frame.getAt(0, slot)));
         }
 
+/* Functions function-call < Functions catch-return
+    interpreter.executeBlock(declaration.body, environment);
+*/
 
+        Object result = interpreter.executeBlock(declaration.body, frame);
+        return result == Interpreter.NORMAL ? null : result;
+    }
 
-        if (isInitializer) return closure.getAt(0, "this");
 
-        return null;
+    private boolean isCompiled() {
+        if (compiled == null && MBasic.useJit && Jit.isHot(declaration)) {
+            compiled = Jit.compile(declaration, captures, this);
+        }
+        return compiled != null;
     }
 
 }
@@ -0,0 +1,500 @@
+package com.micharksi.mbasic;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.micharksi.mbasic.ClassEmitter.*;
+
+// Compiles resolved statements into the code of one JVM method, keeping
+// locals in JVM locals. Shared by the Jit and Aot, which differ in where
+// constants, globals and captures are kept, in how a function recognizes
+// a call to itself and in what becomes of nested function declarations.
+abstract class MethodCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    static final String PACKAGE = "com/micharksi/mbasic/";
+    static final String JIT = PACKAGE + "Jit";
+    static final String INTERPRETER = PACKAGE + "Interpreter";
+    static final String BOX = PACKAGE + "Box";
+    static final String TOKEN = PACKAGE + "Token";
+    static final String CELL = PACKAGE + "Cell";
+    static final String TAIL_CALL = PACKAGE + "TailCall";
+    static final String OBJECT = "java/lang/Object";
+    static final String ARRAY = "[Ljava/lang/Object;";
+
+    private static final String OPERATOR =
+            "(L" + OBJECT + ";L" + OBJECT + ";L" + TOKEN + ";)L" + OBJECT + ";";
+
+    // Locals of a function's method, after the one at 0.
+    static final int INTERPRETER_LOCAL = 1;
+    static final int ARGUMENTS = 2;
+    // Set once a self tail call made from a statement has looped back to
+    // the start, so that the function returns nil.
+    static final int DISCARD = 3;
+
+    // The function being compiled, or null for top-level code.
+    final Stmt.Function function;
+    final ClassEmitter.Method method;
+    // The class holding call() and tailCall() for calls not made directly.
+    private final String runtime;
+    final int interpreterLocal;
+
+    // JVM local index of slot 0 for each scope open in the method.
+    private final List<Integer> scopes = new ArrayList<>();
+    int nextLocal;
+
+    // Bound after the parameters are loaded. Self tail calls store their
+    // arguments in the parameters and jump here.
+    private final ClassEmitter.Label start = new ClassEmitter.Label();
+
+    MethodCompiler(Stmt.Function function, ClassEmitter.Method method,
+                   String runtime, int interpreterLocal, int firstLocal) {
+        this.function = function;
+        this.method = method;
+        this.runtime = runtime;
+        this.interpreterLocal = interpreterLocal;
+        this.nextLocal = firstLocal;
+    }
+
+    // Pushes a Token for the runtime to report errors with.
+    abstract void loadToken(Token token);
+
+    // Pushes the Cell of the global called name.
+    abstract void loadCell(Cell cell, Token name);
+
+    // Pushes the array of the closure's captures.
+    abstract void loadCaptures();
+
+    // Pushes a literal other than nil or a boolean.
+    abstract void loadLiteral(Object value);
+
+    // Pushes what the runtime's call() and tailCall() take to check a call
+    // and report its errors, and returns its descriptor.
+    abstract String loadCallSite(Expr.Call expr);
+
+    // Emits a jump to other unless the callee local holds this function,
+    // or returns false if the call cannot reach this function.
+    abstract boolean checkSelf(Expr.Call expr, int callee,
+                               ClassEmitter.Label other);
+
+    // Pushes the result of running this function's body once, for the
+    // callee and arguments checkSelf() has accepted.
+    abstract void invokeSelf(int callee, int arguments);
+
+    // Called as a self tail call loops back, before the jump.
+    void enterSelf(int callee) {
+    }
+
+    // Whether the call is known to reach this function without checking.
+    boolean alwaysSelf(Expr.Call expr) {
+        return false;
+    }
+
+    // Compiles the function's parameters and body.
+    void compileBody() {
+        method.iconst(0);
+        method.istore(DISCARD);
+
+        // Parameters and the body's own locals live in the first scope.
+        int params = function.params.size();
+        int base = nextLocal;
+        scopes.add(base);
+        nextLocal += function.slotCount;
+        for (int i = 0; i < params; i++) {
+            method.aload(ARGUMENTS);
+            method.iconst(i);
+            method.op(AALOAD, -1);
+            method.astore(base + i);
+        }
+        method.bind(start);
+        for (int slot : function.boxedParams) {
+            method.aload(base + slot);
+            box();
+            method.astore(base + slot);
+        }
+        clearSlots(base, params, function.slotCount);
+
+        for (Stmt statement : function.body) {
+            compile(statement);
+        }
+        method.op(ACONST_NULL, 1);
+        method.op(ARETURN, -1);
+    }
+
+    void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void beginScope(int slotCount) {
+        int base = nextLocal;
+        scopes.add(base);
+        nextLocal += slotCount;
+        clearSlots(base, 0, slotCount);
+    }
+
+    // Slots start out nil, as in a fresh Environment, which also keeps
+    // the verifier from seeing an unassigned local.
+    private void clearSlots(int base, int from, int to) {
+        for (int i = from; i < to; i++) {
+            method.op(ACONST_NULL, 1);
+            method.astore(base + i);
+        }
+    }
+
+    private void endScope() {
+        nextLocal = scopes.remove(scopes.size() - 1);
+    }
+
+    // The JVM local holding a resolved variable.
+    int local(int depth, int slot) {
+        return scopes.get(scopes.size() - 1 - depth) + slot;
+    }
+
+    // Wraps the value on the stack in a new Box.
+    void box() {
+        method.type(NEW, BOX);
+        method.op(DUP_X1, 1);
+        method.op(SWAP, 0);
+        method.invoke(INVOKESPECIAL, BOX, "<init>", "(L" + OBJECT + ";)V");
+    }
+
+    // Pushes one of the closure's captures, which is its Box when boxed.
+    void loadCapture(int index, boolean boxed) {
+        loadCaptures();
+        method.iconst(index);
+        method.op(AALOAD, -1);
+        if (boxed) method.type(CHECKCAST, BOX);
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+
+        if (expr.boxed) {
+            method.op(DUP, 1);
+            if (expr.depth != -1) {
+                method.aload(local(expr.depth, expr.slot));
+                method.type(CHECKCAST, BOX);
+            } else {
+                loadCapture(expr.capture, true);
+            }
+            method.op(SWAP, 0);
+            method.field(PUTFIELD, BOX, "value", "L" + OBJECT + ";");
+            return null;
+        }
+
+        if (expr.depth != -1) {
+            method.op(DUP, 1);
+            method.astore(local(expr.depth, expr.slot));
+            return null;
+        }
+
+        int value = nextLocal++;
+        method.astore(value);
+        loadCell(expr.cell, expr.name);
+        loadToken(expr.name);
+        method.aload(value);
+        method.invoke(INVOKEVIRTUAL, CELL, "assign",
+                "(L" + TOKEN + ";L" + OBJECT + ";)V");
+        method.aload(value);
+        nextLocal--;
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+        loadToken(expr.operator);
+
+        String helper;
+        switch (expr.operator.type) {
+            case PLUS: helper = "add"; break;
+            case MINUS: helper = "subtract"; break;
+            case LESS: helper = "less"; break;
+            case LESS_EQUAL: helper = "lessEqual"; break;
+            case GREATER: helper = "greater"; break;
+            case GREATER_EQUAL: helper = "greaterEqual"; break;
+            default: helper = "binary"; break;
+        }
+        method.invoke(INVOKESTATIC, JIT, helper, OPERATOR);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        int callee = prepareCall(expr);
+        int arguments = callee + 1;
+
+        ClassEmitter.Label general = new ClassEmitter.Label();
+        ClassEmitter.Label done = new ClassEmitter.Label();
+        int stack = method.stack();
+
+        // A recursive call to this same function skips the call checks
+        // and runs the body directly. The body may end in a tail call, so
+        // its result goes through the trampoline.
+        if (checkSelf(expr, callee, general)) {
+            invokeSelf(callee, arguments);
+            method.aload(interpreterLocal);
+            method.op(SWAP, 0);
+            method.invoke(INVOKESTATIC, TAIL_CALL, "run",
+                    "(L" + INTERPRETER + ";L" + OBJECT + ";)L" + OBJECT + ";");
+            method.jump(GOTO, done);
+        }
+
+        method.bind(general);
+        method.stack(stack);
+        method.aload(callee);
+        method.aload(arguments);
+        method.aload(interpreterLocal);
+        String site = loadCallSite(expr);
+        method.invoke(INVOKESTATIC, runtime, "call",
+                "(L" + OBJECT + ";" + ARRAY + "L" + INTERPRETER + ";"
+                        + site + ")L" + OBJECT + ";");
+        method.bind(done);
+
+        nextLocal -= 2;
+        return null;
+    }
+
+    // Stores the callee and an array of the arguments in two new locals
+    // and returns the first.
+    private int prepareCall(Expr.Call expr) {
+        compile(expr.callee);
+        int callee = nextLocal++;
+        method.astore(callee);
+
+        method.iconst(expr.arguments.size());
+        method.type(ANEWARRAY, OBJECT);
+        int arguments = nextLocal++;
+        method.astore(arguments);
+
+        for (int i = 0; i < expr.arguments.size(); i++) {
+            method.aload(arguments);
+            method.iconst(i);
+            compile(expr.arguments.get(i));
+            method.op(AASTORE, -3);
+        }
+
+        return callee;
+    }
+
+    // A self tail call becomes a jump back to the start. Any other tail
+    // call is returned as a TailCall for the caller's trampoline.
+    private void tailCall(Expr.Call expr, boolean discard) {
+        if (alwaysSelf(expr)) {
+            for (Expr argument : expr.arguments) compile(argument);
+            for (int i = function.params.size() - 1; i >= 0; i--) {
+                method.astore(scopes.get(0) + i);
+            }
+            loopBack(discard);
+            return;
+        }
+
+        int callee = prepareCall(expr);
+        int arguments = callee + 1;
+
+        ClassEmitter.Label general = new ClassEmitter.Label();
+
+        if (checkSelf(expr, callee, general)) {
+            for (int i = 0; i < function.params.size(); i++) {
+                method.aload(arguments);
+                method.iconst(i);
+                method.op(AALOAD, -1);
+                method.astore(scopes.get(0) + i);
+            }
+            enterSelf(callee);
+            loopBack(discard);
+        }
+
+        method.bind(general);
+        method.aload(callee);
+        method.aload(arguments);
+        method.aload(interpreterLocal);
+        String site = loadCallSite(expr);
+        if (discard) {
+            method.iconst(1);
+        } else {
+            method.iload(DISCARD);
+        }
+        method.invoke(INVOKESTATIC, runtime, "tailCall",
+                "(L" + OBJECT + ";" + ARRAY + "L" + INTERPRETER + ";"
+                        + site + "Z)L" + OBJECT + ";");
+        method.op(ARETURN, -1);
+
+        nextLocal -= 2;
+    }
+
+    private void loopBack(boolean discard) {
+        if (discard) {
+            method.iconst(1);
+            method.istore(DISCARD);
+        }
+        method.jump(GOTO, start);
+    }
+
+    private static boolean isTailCall(Expr expr) {
+        return expr instanceof Expr.Call && ((Expr.Call)expr).isTailCall;
+    }
+
+    // Returns the value on the stack, or nil if a statement tail call got
+    // us here.
+    private void returnValue() {
+        ClassEmitter.Label done = new ClassEmitter.Label();
+
+        method.iload(DISCARD);
+        method.jump(IFEQ, done);
+        method.op(POP, -1);
+        method.op(ACONST_NULL, 1);
+        method.bind(done);
+        method.op(ARETURN, -1);
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            method.op(ACONST_NULL, 1);
+        } else if (expr.value instanceof Boolean) {
+            method.field(GETSTATIC, "java/lang/Boolean",
+                    (Boolean)expr.value ? "TRUE" : "FALSE",
+                    "Ljava/lang/Boolean;");
+        } else {
+            loadLiteral(expr.value);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        ClassEmitter.Label done = new ClassEmitter.Label();
+
+        compile(expr.left);
+        method.op(DUP, 1);
+        method.invoke(INVOKESTATIC, INTERPRETER, "isTruthy", "(L" + OBJECT + ";)Z");
+        method.jump(expr.operator.type == TokenType.LOGICAL_OR ? IFNE : IFEQ,
+                done);
+        method.op(POP, -1);
+        compile(expr.right);
+        method.bind(done);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        loadToken(expr.operator);
+        method.invoke(INVOKESTATIC, JIT, "unary",
+                "(L" + OBJECT + ";L" + TOKEN + ";)L" + OBJECT + ";");
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        if (expr.depth != -1) {
+            method.aload(local(expr.depth, expr.slot));
+            if (expr.boxed) method.type(CHECKCAST, BOX);
+        } else if (expr.capture != -1) {
+            loadCapture(expr.capture, expr.boxed);
+        } else {
+            loadCell(expr.cell, expr.name);
+            loadToken(expr.name);
+            method.invoke(INVOKEVIRTUAL, CELL, "get",
+                    "(L" + TOKEN + ";)L" + OBJECT + ";");
+            return null;
+        }
+
+        if (expr.boxed) {
+            method.field(GETFIELD, BOX, "value", "L" + OBJECT + ";");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if (!stmt.elided) beginScope(stmt.slotCount);
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        if (!stmt.elided) endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        if (isTailCall(stmt.expression)) {
+            tailCall((Expr.Call)stmt.expression, true);
+            return null;
+        }
+
+        compile(stmt.expression);
+        method.op(POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        ClassEmitter.Label elseBranch = new ClassEmitter.Label();
+        ClassEmitter.Label done = new ClassEmitter.Label();
+
+        compile(stmt.condition);
+        method.invoke(INVOKESTATIC, INTERPRETER, "isTruthy", "(L" + OBJECT + ";)Z");
+        method.jump(IFEQ, elseBranch);
+        compile(stmt.thenBranch);
+        method.jump(GOTO, done);
+        method.bind(elseBranch);
+        if (stmt.elseBranch != null) compile(stmt.elseBranch);
+        method.bind(done);
+        return null;
+    }
+
+    @Override
+    public Void visitNamespaceStmt(Stmt.Namespace stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (isTailCall(stmt.value)) {
+            tailCall((Expr.Call)stmt.value, false);
+            return null;
+        }
+
+        if (stmt.value != null) {
+            compile(stmt.value);
+            returnValue();
+        } else {
+            method.op(ACONST_NULL, 1);
+            method.op(ARETURN, -1);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.slot == -1) loadCell(stmt.cell, stmt.name);
+
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            method.op(ACONST_NULL, 1);
+        }
+
+        if (stmt.slot == -1) {
+            method.invoke(INVOKEVIRTUAL, CELL, "define",
+                    "(L" + OBJECT + ";)V");
+            return null;
+        }
+
+        if (stmt.boxed) box();
+        method.astore(local(0, stmt.slot));
+        return null;
+    }
+}
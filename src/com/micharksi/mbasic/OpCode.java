@@ -0,0 +1,60 @@
+package com.micharksi.mbasic;
+
+// Each instruction is one int: the low 8 bits hold the opcode and the
+// upper 24 bits its operand. Operands that name a Token, Cell, Chunk or
+// value are indexes into the chunk's constant pool.
+final class OpCode {
+    static final int CONSTANT = 0;            // constant
+    static final int NIL = 1;
+    static final int TRUE = 2;
+    static final int FALSE = 3;
+    static final int POP = 4;
+
+    static final int GET_LOCAL = 5;           // depth << 16 | slot
+    static final int SET_LOCAL = 6;           // depth << 16 | slot
+    static final int DEFINE_LOCAL = 7;        // slot
+    static final int GET_GLOBAL = 8;          // cell, then a word with
+                                              // the name token
+    static final int SET_GLOBAL = 9;          // cell, then a word with
+                                              // the name token
+    static final int DEFINE_GLOBAL = 10;      // cell
+
+    static final int ADD = 11;                // operator token
+    static final int SUBTRACT = 12;           // operator token
+    static final int LESS = 13;               // operator token
+    static final int LESS_EQUAL = 14;         // operator token
+    static final int GREATER = 15;            // operator token
+    static final int GREATER_EQUAL = 16;      // operator token
+    static final int EQUAL = 17;
+    static final int NOT_EQUAL = 18;
+    static final int BINARY = 19;             // operator token
+    static final int NOT = 20;
+    static final int NEGATE = 21;             // operator token
+
+    static final int JUMP = 22;               // forward offset
+    static final int JUMP_IF_FALSE = 23;      // forward offset, pops
+    static final int JUMP_IF_FALSE_OR_POP = 24; // forward offset
+    static final int JUMP_IF_TRUE_OR_POP = 25;  // forward offset
+
+    static final int CALL = 26;               // argument count, then a
+                                              // word with the paren token
+    static final int CLOSURE = 27;            // chunk
+    static final int PUSH_SCOPE = 28;         // slot count
+    static final int POP_SCOPE = 29;
+    static final int RETURN = 30;
+    static final int TAIL_CALL = 31;          // argument count, or'd with
+                                              // DISCARD, then a word with
+                                              // the paren token
+    static final int GET_CAPTURE = 32;        // index in the captures
+    static final int BOX = 33;
+    static final int UNBOX = 34;
+    static final int SET_BOX = 35;            // pops the Box, keeps the
+                                              // value under it
+
+    // TAIL_CALL from a statement: the function's value is nil.
+    static final int DISCARD = 0x100;
+
+    static final int MAX_OPERAND = 0xFFFFFF;
+
+    private OpCode() {}
+}
@@ -0,0 +1,563 @@
+package com.micharksi.mbasic;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
+
+// Rewrites a resolved program before it runs. Binary, Unary and Grouping
+// subtrees whose operands are all constant fold into a Literal, using the
+// Interpreter's own operator semantics, and a local declared by a let that
+// nothing assigns is replaced by its value wherever that is a constant.
+// Branches a constant condition never takes, statements after one that
+// always returns, and top-level functions nothing refers to are dropped,
+// and calls to small functions are replaced by the value they return.
+// Last, each function body computes repeated pure expressions only once.
+// Rewritten nodes carry no bindings, so the result must be resolved again.
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    // The most nodes a function's return value may have to be inlined.
+    static final int INLINE_BUDGET = 16;
+
+    // Names declared in each local scope, mapped to the Literal or the
+    // Inlinable function they always hold, or to null if neither. Globals
+    // are never propagated, since code that runs later can assign them.
+    private final Stack<Map<String, Object>> scopes = new Stack<>();
+
+    // Global functions declared so far that can be inlined, when the
+    // program is whole and so nothing later can rebind them.
+    private final Map<String, Inlinable> inlinableGlobals = new HashMap<>();
+
+    // Functions whose inlined value is being optimized, which keeps
+    // mutually recursive functions from inlining each other forever.
+    private final Set<Inlinable> inlining = new HashSet<>();
+
+    // Only when the program is all there is, rather than one REPL entry,
+    // can a function nothing refers to yet be dropped.
+    private final boolean wholeProgram;
+
+    // Names read or assigned by the code that survives, collected for the
+    // top-level statement being optimized.
+    private Set<String> references = new HashSet<>();
+
+    private final CommonSubexpressions subexpressions;
+
+    // resolver is the one that resolved the program, which knows the
+    // globals it binds.
+    Optimizer(boolean wholeProgram, Resolver resolver) {
+        this.wholeProgram = wholeProgram;
+
+        // A builtin keeps its meaning only if nothing, including a later
+        // REPL entry, can rebind it.
+        Set<String> pure = new HashSet<>();
+        if (wholeProgram) {
+            for (String name : Interpreter.PURE_BUILTINS) {
+                if (!resolver.binds(name)) pure.add(name);
+            }
+        }
+        this.subexpressions = new CommonSubexpressions(pure);
+    }
+
+    List<Stmt> optimize(List<Stmt> program) {
+        Set<String> roots = new HashSet<>();
+        Map<Stmt.Function, Set<String>> functions = new HashMap<>();
+
+        List<Stmt> statements = new ArrayList<>(program.size());
+        boolean changed = false;
+        for (Stmt statement : program) {
+            references = statement instanceof Stmt.Function
+                    ? new HashSet<>() : roots;
+            Stmt optimized = optimize(statement);
+            if (optimized instanceof Stmt.Function) {
+                functions.put((Stmt.Function)optimized, references);
+            }
+
+            if (optimized != null) statements.add(optimized);
+            changed |= optimized != statement;
+        }
+
+        if (wholeProgram) {
+            Set<String> live = liveNames(roots, functions);
+            changed |= statements.removeIf(statement ->
+                    statement instanceof Stmt.Function
+                    && !live.contains(((Stmt.Function)statement).name.lexeme));
+        }
+
+        return changed ? statements : program;
+    }
+
+    // Everything the code outside top-level functions refers to, and
+    // everything the functions of those names refer to in turn.
+    private static Set<String> liveNames(
+            Set<String> roots, Map<Stmt.Function, Set<String>> functions) {
+        Set<String> live = new HashSet<>(roots);
+        Deque<String> pending = new ArrayDeque<>(roots);
+        while (!pending.isEmpty()) {
+            String name = pending.pop();
+            for (Map.Entry<Stmt.Function, Set<String>> function
+                    : functions.entrySet()) {
+                if (!function.getKey().name.lexeme.equals(name)) continue;
+
+                for (String reference : function.getValue()) {
+                    if (live.add(reference)) pending.push(reference);
+                }
+            }
+        }
+
+        return live;
+    }
+
+    // Optimizes a statement list, leaving out statements that became
+    // nothing and everything after a statement that always returns.
+    private List<Stmt> optimizeAll(List<Stmt> statements) {
+        List<Stmt> result = new ArrayList<>(statements.size());
+        boolean changed = false;
+        for (Stmt statement : statements) {
+            Stmt optimized = optimize(statement);
+            if (optimized != null) result.add(optimized);
+            changed |= optimized != statement;
+
+            if (optimized != null && returns(optimized)) {
+                changed |= result.size() < statements.size();
+                break;
+            }
+        }
+
+        return changed ? result : statements;
+    }
+
+    // Whether running the statement always ends in a return.
+    private static boolean returns(Stmt stmt) {
+        if (stmt instanceof Stmt.Return) return true;
+
+        if (stmt instanceof Stmt.Block) {
+            List<Stmt> statements = ((Stmt.Block)stmt).statements;
+            return !statements.isEmpty()
+                    && returns(statements.get(statements.size() - 1));
+        }
+
+        if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If)stmt;
+            return ifStmt.elseBranch != null && returns(ifStmt.thenBranch)
+                    && returns(ifStmt.elseBranch);
+        }
+
+        return false;
+    }
+
+    private Expr optimize(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private Stmt optimize(Stmt stmt) {
+        return stmt == null ? null : stmt.accept(this);
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        references.add(expr.name.lexeme);
+        Expr value = optimize(expr.value);
+        if (value == expr.value) return expr;
+
+        return new Expr.Assign(expr.name, value);
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+
+        if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+            try {
+                return new Expr.Literal(Interpreter.binary(expr.operator,
+                        ((Expr.Literal)left).value,
+                        ((Expr.Literal)right).value));
+            } catch (RuntimeException error) {
+                // Left for the program to fail on when it gets there.
+            }
+        }
+
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+        boolean changed = false;
+        for (Expr argument : expr.arguments) {
+            Expr optimized = optimize(argument);
+            arguments.add(optimized);
+            changed |= optimized != argument;
+        }
+
+        Inlinable function = inlinable(expr.callee, arguments);
+        if (function != null) return inline(function, arguments);
+
+        Expr callee = optimize(expr.callee);
+        changed |= callee != expr.callee;
+
+        if (!changed) return expr;
+        return new Expr.Call(callee, expr.paren, arguments);
+    }
+
+    // The function a call can be inlined from, or null. The callee must
+    // name one that nothing rebinds, and every argument must be a value
+    // that evaluating earlier or later, or more than once, cannot change:
+    // a literal, or an unboxed local.
+    private Inlinable inlinable(Expr callee, List<Expr> arguments) {
+        if (!MBasic.useInlining || !(callee instanceof Expr.Variable)) {
+            return null;
+        }
+
+        String name = ((Expr.Variable)callee).name.lexeme;
+        Map<String, Object> scope = scopeOf(name);
+        Object binding = scope != null
+                ? scope.get(name) : inlinableGlobals.get(name);
+        if (!(binding instanceof Inlinable)) return null;
+
+        Inlinable function = (Inlinable)binding;
+        if (inlining.contains(function)
+                || function.params.size() != arguments.size()) {
+            return null;
+        }
+
+        for (Expr argument : arguments) {
+            if (argument instanceof Expr.Literal) continue;
+            if (!(argument instanceof Expr.Variable)) return null;
+
+            Expr.Variable variable = (Expr.Variable)argument;
+            boolean isLocal = variable.depth != -1 || variable.capture != -1;
+            if (!isLocal || variable.boxed) return null;
+        }
+
+        // The globals the value reads must not be shadowed here.
+        for (String global : function.globals) {
+            if (scopeOf(global) != null) return null;
+        }
+
+        return function;
+    }
+
+    private Expr inline(Inlinable function, List<Expr> arguments) {
+        Map<String, Expr> values = new HashMap<>();
+        for (int i = 0; i < arguments.size(); i++) {
+            values.put(function.params.get(i).lexeme, arguments.get(i));
+        }
+
+        Expr value = new Substitution(values).copy(function.value);
+
+        inlining.add(function);
+        try {
+            return optimize(value);
+        } finally {
+            inlining.remove(function);
+        }
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr expression = optimize(expr.expression);
+        if (expression instanceof Expr.Literal) return expression;
+        if (expression == expr.expression) return expr;
+
+        return new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = optimize(expr.left);
+
+        // A constant left operand decides which operand is the value.
+        if (left instanceof Expr.Literal) {
+            boolean truthy = Interpreter.isTruthy(((Expr.Literal)left).value);
+            boolean isOr = expr.operator.type == TokenType.LOGICAL_OR;
+            return truthy == isOr ? left : optimize(expr.right);
+        }
+
+        Expr right = optimize(expr.right);
+        if (left == expr.left && right == expr.right) return expr;
+
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = optimize(expr.right);
+
+        if (right instanceof Expr.Literal) {
+            try {
+                return new Expr.Literal(Interpreter.unary(expr.operator,
+                        ((Expr.Literal)right).value));
+            } catch (RuntimeException error) {
+                // Left for the program to fail on when it gets there.
+            }
+        }
+
+        if (right == expr.right) return expr;
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        references.add(expr.name.lexeme);
+
+        Map<String, Object> scope = scopeOf(expr.name.lexeme);
+        if (scope != null) {
+            Object value = scope.get(expr.name.lexeme);
+            if (value instanceof Expr.Literal) return (Expr.Literal)value;
+        }
+
+        return expr;
+    }
+
+    // The innermost local scope declaring the name, or null for a global.
+    private Map<String, Object> scopeOf(String name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            if (scopes.get(i).containsKey(name)) return scopes.get(i);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        scopes.push(new HashMap<>());
+        List<Stmt> statements = optimizeAll(stmt.statements);
+        scopes.pop();
+
+        if (statements == stmt.statements) return stmt;
+        return new Stmt.Block(statements);
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = optimize(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        declare(stmt.name, null);
+
+        Map<String, Object> params = new HashMap<>();
+        for (Token param : stmt.params) {
+            params.put(param.lexeme, null);
+        }
+        scopes.push(params);
+        List<Stmt> body = optimizeAll(stmt.body);
+        scopes.pop();
+
+        // Calls that follow the declaration may be inlined. Calls in the
+        // body itself never are, which keeps recursion out.
+        if (MBasic.useInlining && !stmt.rebound && stmt.captures.isEmpty()) {
+            Inlinable function = Inlinable.of(stmt, body);
+            if (function != null && !scopes.isEmpty()) {
+                scopes.peek().put(stmt.name.lexeme, function);
+            } else if (function != null && wholeProgram) {
+                inlinableGlobals.put(stmt.name.lexeme, function);
+            }
+        }
+
+        if (MBasic.useCse) {
+            body = subexpressions.eliminate(body, stmt.name.line);
+        }
+
+        if (body == stmt.body) return stmt;
+        return new Stmt.Function(stmt.name, stmt.params, body);
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = optimize(stmt.condition);
+
+        // Only the branch that runs is kept, or nothing at all.
+        if (condition instanceof Expr.Literal) {
+            if (Interpreter.isTruthy(((Expr.Literal)condition).value)) {
+                return optimize(stmt.thenBranch);
+            }
+            return optimize(stmt.elseBranch);
+        }
+
+        Stmt thenBranch = orEmpty(optimize(stmt.thenBranch));
+        Stmt elseBranch = optimize(stmt.elseBranch);
+
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch
+                && elseBranch == stmt.elseBranch) {
+            return stmt;
+        }
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    private static Stmt orEmpty(Stmt stmt) {
+        return stmt != null ? stmt : new Stmt.Block(new ArrayList<>());
+    }
+
+    @Override
+    public Stmt visitNamespaceStmt(Stmt.Namespace stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return stmt;
+
+        Expr value = optimize(stmt.value);
+        if (value == stmt.value) return stmt;
+
+        return new Stmt.Return(stmt.keyword, value);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        Expr initializer = stmt.initializer == null
+                ? null : optimize(stmt.initializer);
+
+        // The let always runs before anything in its scope can read the
+        // name, so an unassigned local keeps its initial value.
+        Object value = null;
+        if (!stmt.assigned) {
+            if (initializer == null) {
+                value = new Expr.Literal(null);
+            } else if (initializer instanceof Expr.Literal) {
+                value = (Expr.Literal)initializer;
+            }
+        }
+        declare(stmt.name, value);
+
+        if (initializer == stmt.initializer) return stmt;
+        return new Stmt.Var(stmt.type, stmt.name, initializer);
+    }
+
+    private void declare(Token name, Object value) {
+        if (scopes.isEmpty()) return;
+        scopes.peek().put(name.lexeme, value);
+    }
+
+    // A function whose body is a single return of a small expression that
+    // reads only its parameters, which it does not assign, and globals
+    // other than its own name.
+    private static class Inlinable {
+        final List<Token> params;
+        final Expr value;
+        final Set<String> globals;
+
+        private Inlinable(List<Token> params, Expr value,
+                          Set<String> globals) {
+            this.params = params;
+            this.value = value;
+            this.globals = globals;
+        }
+
+        static Inlinable of(Stmt.Function function, List<Stmt> body) {
+            if (body.size() != 1 || !(body.get(0) instanceof Stmt.Return)) {
+                return null;
+            }
+
+            Expr value = ((Stmt.Return)body.get(0)).value;
+            if (value == null) return null;
+
+            Substitution scan = new Substitution(new HashMap<>());
+            scan.copy(value);
+            if (scan.size > INLINE_BUDGET) return null;
+
+            Set<String> globals = new HashSet<>(scan.names);
+            for (Token param : function.params) {
+                if (scan.assigned.contains(param.lexeme)) return null;
+                globals.remove(param.lexeme);
+            }
+            if (globals.contains(function.name.lexeme)) return null;
+
+            return new Inlinable(function.params, value, globals);
+        }
+    }
+
+    // Copies an inlined value into a call site, with each parameter read
+    // replaced by its argument. Nodes are copied rather than shared, since
+    // each carries bindings and type feedback of its own. Also counts the
+    // nodes and notes every name read or assigned.
+    private static class Substitution implements Expr.Visitor<Expr> {
+        private final Map<String, Expr> arguments;
+        final Set<String> names = new HashSet<>();
+        final Set<String> assigned = new HashSet<>();
+        int size = 0;
+
+        Substitution(Map<String, Expr> arguments) {
+            this.arguments = arguments;
+        }
+
+        Expr copy(Expr expr) {
+            size++;
+            return expr.accept(this);
+        }
+
+        @Override
+        public Expr visitAssignExpr(Expr.Assign expr) {
+            names.add(expr.name.lexeme);
+            assigned.add(expr.name.lexeme);
+            return new Expr.Assign(expr.name, copy(expr.value));
+        }
+
+        @Override
+        public Expr visitBinaryExpr(Expr.Binary expr) {
+            return new Expr.Binary(copy(expr.left), expr.operator,
+                    copy(expr.right));
+        }
+
+        @Override
+        public Expr visitCallExpr(Expr.Call expr) {
+            Expr callee = copy(expr.callee);
+            List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+            for (Expr argument : expr.arguments) {
+                arguments.add(copy(argument));
+            }
+            return new Expr.Call(callee, expr.paren, arguments);
+        }
+
+        @Override
+        public Expr visitGroupingExpr(Expr.Grouping expr) {
+            return new Expr.Grouping(copy(expr.expression));
+        }
+
+        @Override
+        public Expr visitLiteralExpr(Expr.Literal expr) {
+            return expr;
+        }
+
+        @Override
+        public Expr visitLogicalExpr(Expr.Logical expr) {
+            return new Expr.Logical(copy(expr.left), expr.operator,
+                    copy(expr.right));
+        }
+
+        @Override
+        public Expr visitUnaryExpr(Expr.Unary expr) {
+            return new Expr.Unary(expr.operator, copy(expr.right));
+        }
+
+        @Override
+        public Expr visitVariableExpr(Expr.Variable expr) {
+            names.add(expr.name.lexeme);
+            Expr argument = arguments.get(expr.name.lexeme);
+            if (argument == null) return new Expr.Variable(expr.name);
+
+            // Each read of the parameter gets its own copy of a local. A
+            // literal carries nothing of its own and is shared.
+            if (argument instanceof Expr.Variable) {
+                return new Expr.Variable(((Expr.Variable)argument).name);
+            }
+            return argument;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.micharksi.mbasic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Tokenizes and parses a large file in chunks on the common ForkJoinPool.
+// The source is split before a do or namespace that starts a line outside
+// any braces, string, character or comment. Nothing before such a point
+// can continue past it, so each chunk parses on its own to the statements
+// the whole file would, and they are joined in source order. A chunk that
+// has an error is not trusted to report it as the whole file would, so
+// then the file is parsed again on one thread instead.
+class ParallelParser {
+    // Chunks are at least this many characters, which keeps small files on
+    // one thread.
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    // The chunk being parsed on this thread, if any.
+    private static final ThreadLocal<Task> parsing = new ThreadLocal<>();
+
+    private final String source;
+    private final List<Task> tasks = new ArrayList<>();
+    private List<Stmt> statements;
+
+    ParallelParser(String source) {
+        this.source = source;
+    }
+
+    // Returns false if there is only one thread to parse on, the file is
+    // a single chunk or a chunk had an error, in which case it should be
+    // parsed as usual.
+    boolean parse() {
+        if (ForkJoinPool.getCommonPoolParallelism() < 2) return false;
+
+        split();
+        if (tasks.size() < 2) return false;
+
+        for (Task task : tasks) task.fork();
+
+        boolean failed = false;
+        for (Task task : tasks) {
+            task.join();
+            failed |= task.failed;
+        }
+        if (failed) return false;
+
+        statements = new ArrayList<>();
+        for (Task task : tasks) statements.addAll(task.statements);
+        return true;
+    }
+
+    List<Stmt> statements() {
+        return statements;
+    }
+
+    // The tokens of every chunk, listed as one TokenStream of the whole
+    // file would list them.
+    String tokens() {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < tasks.size(); i++) {
+            if (i > 0) builder.append(", ");
+
+            boolean last = i == tasks.size() - 1;
+            tasks.get(i).tokens.appendTo(builder, last);
+        }
+        return builder.append(']').toString();
+    }
+
+    // Called for each compile error. On a thread parsing a chunk it marks
+    // the chunk as failed and returns true, and the error is left for the
+    // parse of the whole file to report.
+    static boolean absorb() {
+        Task task = parsing.get();
+        if (task == null) return false;
+
+        task.failed = true;
+        return true;
+    }
+
+    // Finds the points to split at, skipping what the Tokenizer would skip
+    // and counting lines as it does.
+    private void split() {
+        int length = source.length();
+        int depth = 0;
+        int line = 1;
+        int chunkStart = 0;
+        int chunkLine = 1;
+
+        int i = 0;
+        while (i < length) {
+            char c = source.charAt(i++);
+            switch (c) {
+                case '\n':
+                    line++;
+                    if (depth == 0 && i - chunkStart >= CHUNK_SIZE
+                            && startsDeclaration(i)) {
+                        tasks.add(new Task(source.substring(chunkStart, i),
+                                chunkLine));
+                        chunkStart = i;
+                        chunkLine = line;
+                    }
+                    break;
+                case '{':
+                    depth++;
+                    break;
+                case '}':
+                    depth--;
+                    break;
+                case '"':
+                    while (i < length && source.charAt(i) != '"') {
+                        if (source.charAt(i) == '\n') line++;
+                        i++;
+                    }
+                    i++;
+                    break;
+                case '\'':
+                    while (i < length && source.charAt(i) != '\'') i++;
+                    i++;
+                    break;
+                case '/':
+                    if (i < length && source.charAt(i) == '/') {
+                        while (i < length && source.charAt(i) != '\n') i++;
+                    }
+                    break;
+                case '$':
+                    // The Tokenizer skips the character after it.
+                    i++;
+                    break;
+            }
+        }
+
+        if (chunkStart < length) {
+            tasks.add(new Task(source.substring(chunkStart), chunkLine));
+        }
+    }
+
+    // Whether the line starting at index begins with do or namespace.
+    private boolean startsDeclaration(int index) {
+        int i = index;
+        while (i < source.length()
+                && (source.charAt(i) == ' ' || source.charAt(i) == '\t')) {
+            i++;
+        }
+
+        return startsWord(i, "do") || startsWord(i, "namespace");
+    }
+
+    private boolean startsWord(int index, String word) {
+        if (!source.startsWith(word, index)) return false;
+
+        int end = index + word.length();
+        if (end == source.length()) return true;
+
+        char next = source.charAt(end);
+        return !(Character.isLetterOrDigit(next) || next == '_');
+    }
+
+    private static class Task extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final String source;
+        private final int line;
+
+        TokenStream tokens;
+        List<Stmt> statements;
+        boolean failed;
+
+        Task(String source, int line) {
+            this.source = source;
+            this.line = line;
+        }
+
+        @Override
+        protected void compute() {
+            parsing.set(this);
+            try {
+                tokens = new Tokenizer(source, line).scanTokens();
+                // Scanned whole first, so the tokens can still be listed.
+                tokens.fill();
+                statements = new Parser(tokens).parse();
+            } finally {
+                parsing.remove();
+            }
+        }
+    }
+}
@@ -1,7 +1,9 @@
 package com.micharksi.mbasic;
 
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 
 import static com.micharksi.mbasic.TokenType.*;
 
@@ -9,11 +11,50 @@ public class Parser {
 
     private static class ParseError extends RuntimeException {}
 
-
-    private final List<Token> tokens;
+    // How tightly each binary operator binds, indexed by TokenType
+    // ordinal. Tokens that are not binary operators have NONE, which ends
+    // an expression.
+    private static final int NONE = 0;
+    private static final int OR = 1;
+    private static final int AND = 2;
+    private static final int EQUALITY = 3;
+    private static final int COMPARISON = 4;
+    private static final int TERM = 5;
+    private static final int FACTOR = 6;
+    private static final int BITWISE = 7;
+
+    private static final int[] PRECEDENCE =
+            new int[TokenType.values().length];
+
+    static {
+        PRECEDENCE[LOGICAL_OR.ordinal()] = OR;
+        PRECEDENCE[LOGICAL_AND.ordinal()] = AND;
+        PRECEDENCE[BANG_EQUAL.ordinal()] = EQUALITY;
+        PRECEDENCE[EQUAL_EQUAL.ordinal()] = EQUALITY;
+        PRECEDENCE[GREATER.ordinal()] = COMPARISON;
+        PRECEDENCE[GREATER_EQUAL.ordinal()] = COMPARISON;
+        PRECEDENCE[LESS.ordinal()] = COMPARISON;
+        PRECEDENCE[LESS_EQUAL.ordinal()] = COMPARISON;
+        PRECEDENCE[MINUS.ordinal()] = TERM;
+        PRECEDENCE[PLUS.ordinal()] = TERM;
+        PRECEDENCE[SLASH.ordinal()] = FACTOR;
+        PRECEDENCE[STAR.ordinal()] = FACTOR;
+        PRECEDENCE[PERCENT.ordinal()] = FACTOR;
+        PRECEDENCE[BITWISE_AND.ordinal()] = BITWISE;
+        PRECEDENCE[BITWISE_OR.ordinal()] = BITWISE;
+    }
+
+    // Tokens that are literal values, and those that name a type.
+    private static final Set<TokenType> LITERALS =
+            EnumSet.of(BIN, HEX, CHAR, INT, FLOAT, STRING);
+    private static final Set<TokenType> PRIMITIVES =
+            EnumSet.of(BIN, CHAR, INT, STRING, HEX, FLOAT, BOOL);
+
+
+    private final TokenStream tokens;
     private int current = 0;
 
-    Parser(List<Token> tokens) {
+    Parser(TokenStream tokens) {
         this.tokens = tokens;
     }
 
@@ -42,7 +83,7 @@ public class Parser {
                     initializer = expression();
                 }
 
-                consume(SEMICOLON, "Expect ';' after variable declaration.");
+                expect(SEMICOLON, "Expect ';' after variable declaration.");
                 return new Stmt.Var(type, name, initializer);
                 // if the next keyword is a varDecl, then make the variable assigned to a type
                 // if it's a function, then make the function assigned to a type
@@ -62,7 +103,7 @@ public class Parser {
             initializer = expression();
         }
 
-        consume(SEMICOLON, "Expect ';' after variable declaration.");
+        expect(SEMICOLON, "Expect ';' after variable declaration.");
         return new Stmt.Var(null, name, initializer);
     }
 
@@ -78,9 +119,9 @@ public class Parser {
     }
 
     private Stmt ifStatement() {
-        consume(LEFT_PAREN, "Expect '(' after 'if'.");
+        expect(LEFT_PAREN, "Expect '(' after 'if'.");
         Expr condition = expression();
-        consume(RIGHT_PAREN, "Expect ')' after if condition."); // [parens]
+        expect(RIGHT_PAREN, "Expect ')' after if condition."); // [parens]
 
         Stmt thenBranch = statement();
         Stmt elseBranch = null;
@@ -98,14 +139,14 @@ public class Parser {
             value = expression();
         }
 
-        consume(SEMICOLON, "Expect ';' after return value.");
+        expect(SEMICOLON, "Expect ';' after return value.");
         return new Stmt.Return(keyword, value);
     }
 
     private Stmt.Function function(){
         Token name = consume(IDENTIFIER, "Expect function name.");
 
-        consume(LEFT_PAREN, "Expect '(' after function name.");
+        expect(LEFT_PAREN, "Expect '(' after function name.");
         List<Token> parameters = new ArrayList<>();
         if (!check(RIGHT_PAREN)) {
             do {
@@ -118,8 +159,8 @@ public class Parser {
             } while (match(COMMA));
         }
 
-        consume(RIGHT_PAREN, "Expect ')' after parameters.");
-        consume(LEFT_BRACE, "Expect '{' before function body.");
+        expect(RIGHT_PAREN, "Expect ')' after parameters.");
+        expect(LEFT_BRACE, "Expect '{' before function body.");
         List<Stmt> body = block();
         return new Stmt.Function(name, parameters, body);
     }
@@ -127,14 +168,14 @@ public class Parser {
     private Stmt namespace(){
         Token name = consume(IDENTIFIER, "Expect namespace name.");
 
-        consume(LEFT_BRACE, "Expect '{' before namespace body.");
+        expect(LEFT_BRACE, "Expect '{' before namespace body.");
 
         List<Stmt> statements = new ArrayList<>();
         while (!check(RIGHT_BRACE) && !isAtEnd()) {
             statements.add(declaration());
         }
 
-        consume(RIGHT_BRACE, "Expect '}' after namespace body.");
+        expect(RIGHT_BRACE, "Expect '}' after namespace body.");
 
         return new Stmt.Namespace(name, statements);
     }
@@ -146,13 +187,13 @@ public class Parser {
             statements.add(declaration());
         }
 
-        consume(RIGHT_BRACE, "Expect '}' after block.");
+        expect(RIGHT_BRACE, "Expect '}' after block.");
         return statements;
     }
 
     private Stmt expressionStatement(){
         Expr expr = expression();
-        consume(SEMICOLON, "Expect ';' after expression.");
+        expect(SEMICOLON, "Expect ';' after expression.");
         return new Stmt.Expression(expr);
     }
 
@@ -164,7 +205,7 @@ public class Parser {
     }
 
     private Expr assignment(){
-        Expr expr = or();
+        Expr expr = binary(OR);
 
         if(match(EQUAL)){
             Token equals = previous();
@@ -181,97 +222,32 @@ public class Parser {
         return expr;
     }
 
-    private Expr or(){
-        Expr expr = and();
-
-        while(match(LOGICAL_OR)){
-            Token operator = previous();
-            Expr right = and();
-            expr = new Expr.Logical(expr, operator, right);
-        }
-
-        return expr;
-    }
-
-    private Expr and(){
-        Expr expr = equality();
-
-        while(match(LOGICAL_AND)){
-            Token operator = previous();
-            Expr right = equality();
-            expr = new Expr.Logical(expr, operator, right);
-        }
-
-        return expr;
-    }
-
-    private Expr equality() {
-        Expr expr = comparison();
-
-        while (match(BANG_EQUAL, EQUAL_EQUAL)) {
-            Token operator = previous();
-            Expr right = comparison();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-
-        return expr;
-    }
-
-
-    private Expr comparison() {
-        Expr expr = term();
-
-        while (match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
-            Token operator = previous();
-            Expr right = term();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-
-        return expr;
-    }
-
-
-    private Expr term() {
-        Expr expr = factor();
-
-        while (match(MINUS, PLUS)) {
-            Token operator = previous();
-            Expr right = factor();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-
-        return expr;
-    }
-
-
-    private Expr factor() {
-        Expr expr = bitwise();
-
-        while (match(SLASH, STAR, PERCENT)) {
-            Token operator = previous();
-            Expr right = bitwise();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-
-        return expr;
-    }
-
-
-    private Expr bitwise() {
+    // Parses operands joined by binary operators that bind at least as
+    // tightly as precedence. Every operator is left-associative, so the
+    // right operand only takes operators that bind more tightly.
+    private Expr binary(int precedence) {
         Expr expr = unary();
 
-        while (match(BITWISE_AND, BITWISE_OR)) {
+        while (true) {
+            TokenType type = tokens.type(current);
+            int binding = PRECEDENCE[type.ordinal()];
+            if (binding < precedence) return expr;
+
+            advance();
             Token operator = previous();
-            Expr right = unary();
-            expr = new Expr.Binary(expr, operator, right);
+            Expr right = binary(binding + 1);
+            if (binding <= AND) {
+                expr = new Expr.Logical(expr, operator, right);
+            } else {
+                expr = new Expr.Binary(expr, operator, right);
+            }
         }
-
-        return expr;
     }
 
 
     private Expr unary() {
-        if (match(BANG, MINUS)) {
+        if (check(BANG) || check(MINUS)) {
+            advance();
             Token operator = previous();
             Expr right = unary();
             return new Expr.Unary(operator, right);
@@ -320,8 +296,8 @@ public class Parser {
         if (match(TRUE)) return new Expr.Literal(true);
         if (match(NULL)) return new Expr.Literal(null);
 
-        if (match(BIN, HEX, CHAR, INT, FLOAT, STRING)) {
-            return new Expr.Literal(previous().literal);
+        if (match(LITERALS)) {
+            return new Expr.Literal(tokens.literal(current - 1));
         }
 
         if (match(IDENTIFIER)) {
@@ -330,7 +306,7 @@ public class Parser {
 
         if (match(LEFT_PAREN)) {
             Expr expr = expression();
-            consume(RIGHT_PAREN, "Expect ')' after expression.");
+            expect(RIGHT_PAREN, "Expect ')' after expression.");
             return new Expr.Grouping(expr);
         }
 
@@ -338,55 +314,69 @@ public class Parser {
 
     }
 
-    private boolean match(TokenType... types) {
-        for (TokenType type : types) {
-            if (check(type)) {
-                advance();
-                return true;
-            }
-        }
+    private boolean match(TokenType type) {
+        if (!check(type)) return false;
 
-        return false;
+        advance();
+        return true;
+    }
+
+    private boolean match(Set<TokenType> types) {
+        if (!types.contains(tokens.type(current))) return false;
+
+        advance();
+        return true;
     }
 
     private boolean matchPrim(){
-        return match(BIN, CHAR, INT, STRING, HEX, FLOAT, BOOL);
+        return match(PRIMITIVES);
     }
 
 
     private Token consume(TokenType type, String message) {
-        if (check(type)) return advance();
+        expect(type, message);
+        return previous();
+    }
+
 
-        throw error(peek(), message);
+    // As consume(), for a token the tree does not keep.
+    private void expect(TokenType type, String message) {
+        if (!check(type)) throw error(peek(), message);
+
+        advance();
     }
 
 
     private boolean check(TokenType type) {
         if (isAtEnd()) return false;
-        return peek().type == type;
+        return tokens.type(current) == type;
     }
 
 
-    private Token advance() {
-        if (!isAtEnd()) current++;
-        return previous();
+    // Only the token before current is ever looked at again.
+    private void advance() {
+        if (isAtEnd()) return;
+
+        current++;
+        tokens.release(current - 1);
     }
 
 
     private boolean isAtEnd() {
-        return peek().type == EOF;
+        return tokens.type(current) == EOF;
     }
 
+    // Tokens are only created for what the tree keeps and for errors.
     private Token next(){
-        return tokens.get(current + 1);
+        return tokens.token(current + 1);
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return tokens.token(current);
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return tokens.token(current - 1);
     }
 
 
@@ -400,9 +390,9 @@ public class Parser {
         advance();
 
         while (!isAtEnd()) {
-            if (previous().type == SEMICOLON) return;
+            if (tokens.type(current - 1) == SEMICOLON) return;
 
-            switch (peek().type) {
+            switch (tokens.type(current)) {
                 case DO:
                 case LET:
                 case IF:
@@ -1,18 +1,24 @@
 package com.micharksi.mbasic;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 
 public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-    private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    private final Environment globals;
+    private final Stack<Scope> scopes = new Stack<>();
     private FunctionType currentFunction = FunctionType.NONE;
+    private FunctionScope function = new FunctionScope(null, null, 0);
 
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
-    }
+    // Global declarations seen so far, and globals something assigns, to
+    // tell which global functions always hold their declaration.
+    private final Map<String, Stmt> globalDeclarations = new HashMap<>();
+    private final Set<String> assignedGlobals = new HashSet<>();
 
     private enum FunctionType {
         NONE,
@@ -24,6 +30,53 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     }
 
+    private static class Scope {
+        // false while a variable's initializer is being resolved.
+        final Map<String, Boolean> defined = new HashMap<>();
+        final Map<String, Local> locals = new HashMap<>();
+    }
+
+    // A variable declared in a local scope, with everything that refers
+    // to it. A local that is both captured by a closure and assigned is
+    // boxed once its scope ends.
+    private static class Local {
+        final int slot;
+        // The Var or Function statement, or the function whose parameter
+        // this is.
+        final Stmt declaration;
+        final boolean isParameter;
+        final List<Expr> uses = new ArrayList<>();
+        boolean captured;
+        boolean assigned;
+
+        Local(int slot, Stmt declaration, boolean isParameter) {
+            this.slot = slot;
+            this.declaration = declaration;
+            this.isParameter = isParameter;
+        }
+    }
+
+    // The function whose body is being resolved; the top-level code has
+    // one with no declaration. base is the index of its outermost scope.
+    private static class FunctionScope {
+        final Stmt.Function declaration;
+        final FunctionScope enclosing;
+        final int base;
+        final Map<Local, Integer> captures = new HashMap<>();
+
+        FunctionScope(Stmt.Function declaration, FunctionScope enclosing,
+                      int base) {
+            this.declaration = declaration;
+            this.enclosing = enclosing;
+            this.base = base;
+        }
+    }
+
+    // Global names are linked to their Cells in globals.
+    Resolver(Environment globals) {
+        this.globals = globals;
+    }
+
     void resolve(List<Stmt> statements){
         for(Stmt statement : statements)
             resolve(statement);
@@ -40,7 +93,18 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+
+        Local local = resolveLocal(expr, expr.name);
+        if (local != null) {
+            local.assigned = true;
+        } else {
+            expr.depth = -1;
+            expr.capture = -1;
+            expr.cell = globals.cell(expr.name.lexeme);
+
+            assignedGlobals.add(expr.name.lexeme);
+            rebind(globalDeclarations.get(expr.name.lexeme));
+        }
         return null;
     }
 
@@ -89,20 +153,31 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
         if (!scopes.isEmpty() &&
-                scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
+                scopes.peek().defined.get(expr.name.lexeme) == Boolean.FALSE) {
             MBasic.error(expr.name,
                     "Can't read local variable in its own initializer.");
         }
 
-        resolveLocal(expr, expr.name);
+        if (resolveLocal(expr, expr.name) == null) {
+            expr.depth = -1;
+            expr.capture = -1;
+            expr.cell = globals.cell(expr.name.lexeme);
+        }
         return null;
     }
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
+        stmt.elided = !declaresAny(stmt.statements);
+        if (stmt.elided) {
+            resolve(stmt.statements);
+            stmt.slotCount = 0;
+            return null;
+        }
+
         beginScope();
         resolve(stmt.statements);
-        endScope();
+        stmt.slotCount = endScope();
         return null;
     }
 
@@ -114,7 +189,10 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.name);
+        stmt.boxed = false;
+        stmt.rebound = false;
+        stmt.slot = declare(stmt.name, stmt, false);
+        if (stmt.slot == -1) declareGlobal(stmt.name, stmt);
         define(stmt.name);
 
 /* Resolving and Binding visit-function-stmt < Resolving and Binding pass-function-type
@@ -146,14 +224,19 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         }
 
 
-        if (stmt.value != null) resolve(stmt.value);
+        if (stmt.value != null) {
+            resolve(stmt.value);
+            markTailCall(stmt.value);
+        }
 
         return null;
     }
 
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
-        declare(stmt.name);
+        stmt.boxed = false;
+        stmt.slot = declare(stmt.name, stmt, false);
+        if (stmt.slot == -1) declareGlobal(stmt.name, stmt);
         if (stmt.initializer != null) {
             resolve(stmt.initializer);
         }
@@ -165,55 +248,229 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             Stmt.Function function, FunctionType type) {
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
+        FunctionScope enclosingScope = this.function;
+        this.function = new FunctionScope(function, enclosingScope,
+                scopes.size());
+        function.captures.clear();
+        function.boxedParams.clear();
 
 
         beginScope();
         for (Token param : function.params) {
-            declare(param);
+            declare(param, function, true);
             define(param);
         }
         resolve(function.body);
-        endScope();
+        markTailCalls(function.body);
+        function.slotCount = endScope();
 
         currentFunction = enclosingFunction;
+        this.function = enclosingScope;
+
+    }
 
+    static boolean declaresAny(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Var
+                    || statement instanceof Stmt.Function) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // A call is in tail position when its value is returned, or when it is
+    // the last statement the function runs and the function returns nil.
+    private void markTailCall(Expr expr) {
+        if (expr instanceof Expr.Call) ((Expr.Call)expr).isTailCall = true;
+    }
+
+    private void markTailCalls(List<Stmt> statements) {
+        if (statements.isEmpty()) return;
+
+        Stmt last = statements.get(statements.size() - 1);
+        if (last instanceof Stmt.Expression) {
+            markTailCall(((Stmt.Expression)last).expression);
+        } else if (last instanceof Stmt.Block) {
+            markTailCalls(((Stmt.Block)last).statements);
+        } else if (last instanceof Stmt.If) {
+            Stmt.If stmt = (Stmt.If)last;
+            markTailCalls(Collections.singletonList(stmt.thenBranch));
+            if (stmt.elseBranch != null) {
+                markTailCalls(Collections.singletonList(stmt.elseBranch));
+            }
+        }
     }
 
     private void beginScope() {
-        scopes.push(new HashMap<String, Boolean>());
+        scopes.push(new Scope());
     }
 
-    private void endScope() {
-        scopes.pop();
+    // Returns the number of slots the scope's frame needs, once every
+    // local that must be boxed has been marked so.
+    private int endScope() {
+        Scope scope = scopes.pop();
+        for (Local local : scope.locals.values()) {
+            if (local.declaration instanceof Stmt.Var) {
+                ((Stmt.Var)local.declaration).assigned = local.assigned;
+            } else if (!local.isParameter) {
+                ((Stmt.Function)local.declaration).rebound = local.assigned;
+            }
+            for (Expr use : local.uses) {
+                if (use instanceof Expr.Variable) {
+                    ((Expr.Variable)use).assigned = local.assigned;
+                }
+            }
+            if (local.captured && local.assigned) box(local);
+        }
+        return scope.locals.size();
     }
 
-    private void declare(Token name) {
-        if (scopes.isEmpty()) return;
+    private void box(Local local) {
+        for (Expr use : local.uses) {
+            if (use instanceof Expr.Variable) {
+                ((Expr.Variable)use).boxed = true;
+            } else {
+                ((Expr.Assign)use).boxed = true;
+            }
+        }
 
-        Map<String, Boolean> scope = scopes.peek();
+        if (local.isParameter) {
+            ((Stmt.Function)local.declaration).boxedParams.add(local.slot);
+        } else if (local.declaration instanceof Stmt.Var) {
+            ((Stmt.Var)local.declaration).boxed = true;
+        } else {
+            Stmt.Function function = (Stmt.Function)local.declaration;
+            function.boxed = true;
+
+            // The Box is in its slot before the closure is created, so
+            // the closure captures that like any other slot.
+            List<Capture> captures = function.captures;
+            for (int i = 0; i < captures.size(); i++) {
+                Capture capture = captures.get(i);
+                if (capture.self) {
+                    captures.set(i,
+                            new Capture(capture.depth, capture.slot, false));
+                }
+            }
+        }
+    }
 
-        if (scope.containsKey(name.lexeme)) {
+    private void declareGlobal(Token name, Stmt declaration) {
+        if (declaration instanceof Stmt.Var) {
+            ((Stmt.Var)declaration).cell = globals.cell(name.lexeme);
+        } else {
+            ((Stmt.Function)declaration).cell = globals.cell(name.lexeme);
+        }
+
+        Stmt previous = globalDeclarations.put(name.lexeme, declaration);
+        if (previous != null || assignedGlobals.contains(name.lexeme)) {
+            rebind(previous);
+            rebind(declaration);
+        }
+    }
+
+    // Whether the program declares or assigns the global anywhere.
+    boolean binds(String name) {
+        return globalDeclarations.containsKey(name)
+                || assignedGlobals.contains(name);
+    }
+
+    private static void rebind(Stmt declaration) {
+        if (declaration instanceof Stmt.Function) {
+            ((Stmt.Function)declaration).rebound = true;
+        }
+    }
+
+    // Returns the slot assigned to the name, or -1 if it is a global.
+    // declaration is the statement declaring it, or the function whose
+    // parameter it is.
+    private int declare(Token name, Stmt declaration, boolean isParameter) {
+        if (scopes.isEmpty()) return -1;
+
+        Scope scope = scopes.peek();
+
+        if (scope.defined.containsKey(name.lexeme)) {
             MBasic.error(name,
                     "Already variable with this name in this scope.");
+            return scope.locals.get(name.lexeme).slot;
         }
 
 
-        scope.put(name.lexeme, false);
+        scope.defined.put(name.lexeme, false);
+
+        int slot = scope.locals.size();
+        scope.locals.put(name.lexeme,
+                new Local(slot, declaration, isParameter));
+        return slot;
     }
 
 
     private void define(Token name) {
         if (scopes.isEmpty()) return;
-        scopes.peek().put(name.lexeme, true);
+        scopes.peek().defined.put(name.lexeme, true);
     }
 
 
-    private void resolveLocal(Expr expr, Token name) {
+    // Binds a reference to the innermost local of that name: by depth and
+    // slot when it belongs to the current function, otherwise as one of
+    // the function's captures. Returns null if it must be a global.
+    private Local resolveLocal(Expr expr, Token name) {
         for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return;
+            Local local = scopes.get(i).locals.get(name.lexeme);
+            if (local == null) continue;
+
+            local.uses.add(expr);
+            int depth = -1;
+            int capture = -1;
+            if (i >= function.base) {
+                depth = scopes.size() - 1 - i;
+            } else {
+                local.captured = true;
+                capture = capture(function, local, i);
+            }
+
+            if (expr instanceof Expr.Variable) {
+                Expr.Variable variable = (Expr.Variable)expr;
+                variable.depth = depth;
+                variable.slot = local.slot;
+                variable.capture = capture;
+                variable.boxed = false;
+            } else {
+                Expr.Assign assign = (Expr.Assign)expr;
+                assign.depth = depth;
+                assign.slot = local.slot;
+                assign.capture = capture;
+                assign.boxed = false;
             }
+            return local;
         }
+
+        return null;
+    }
+
+
+    // Returns the index of the local among the function's captures,
+    // adding it, and threading it through every function in between, the
+    // first time it is seen. scope is the index of the local's scope.
+    private int capture(FunctionScope function, Local local, int scope) {
+        Integer index = function.captures.get(local);
+        if (index != null) return index;
+
+        Capture capture;
+        if (scope >= function.enclosing.base) {
+            // Declared in the function the closure is created in, counted
+            // out from the scope the declaration sits in.
+            capture = new Capture(function.base - 1 - scope, local.slot,
+                    local.declaration == function.declaration);
+        } else {
+            capture = new Capture(-1,
+                    capture(function.enclosing, local, scope), false);
+        }
+
+        List<Capture> captures = function.declaration.captures;
+        captures.add(capture);
+        function.captures.put(local, captures.size() - 1);
+        return captures.size() - 1;
     }
 }
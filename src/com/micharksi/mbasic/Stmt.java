@@ -1,5 +1,7 @@
 package com.micharksi.mbasic;
 
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
 import java.util.List;
 
 public abstract class Stmt {
@@ -24,6 +26,12 @@ public abstract class Stmt {
         }
 
         final List<Stmt> statements;
+
+        // Number of locals declared directly in this block, set by the
+        // Resolver. A block that declares nothing is elided: it runs in the
+        // enclosing frame and is not counted in any depth.
+        int slotCount;
+        boolean elided;
     }
 
     static class Expression extends Stmt {
@@ -55,6 +63,30 @@ public abstract class Stmt {
         final Token name;
         final List<Token> params;
         final List<Stmt> body;
+
+        // Slot of the function's name in the enclosing frame (-1 for a
+        // global, bound to cell) and size of its own frame, set by the
+        // Resolver.
+        int slot = -1;
+        int slotCount;
+        Cell cell;
+
+        // Closure layout, set by the Resolver: the free variables the
+        // function captures, whether its own name is boxed, and which
+        // parameters need boxing on entry.
+        List<Capture> captures = new ArrayList<>();
+        boolean boxed;
+        List<Integer> boxedParams = new ArrayList<>();
+
+        // Set by the Resolver when an assignment, or for a global another
+        // declaration, can rebind the function's name.
+        boolean rebound;
+
+        // Jit state: how often the body has run interpreted, and once it
+        // has been compiled, a constructor taking (captures, self).
+        int calls;
+        boolean uncompilable;
+        MethodHandle compiled;
     }
 
 
@@ -121,6 +153,14 @@ public abstract class Stmt {
         final Token type;
         final Token name;
         final Expr initializer;
+
+        // Slot in the enclosing frame (-1 for a global, bound to cell),
+        // whether the slot holds a Box, and for a local, whether anything
+        // assigns it, set by the Resolver.
+        int slot = -1;
+        boolean boxed;
+        boolean assigned;
+        Cell cell;
     }
 
     abstract <R> R accept(Visitor<R> visitor);
@@ -0,0 +1,40 @@
+package com.micharksi.mbasic;
+
+// Returned from a function body in place of its value when the body ends
+// in a call. The trampoline in run() makes the call after the body's frame
+// is gone, so recursion in tail position uses constant Java stack.
+class TailCall {
+    final MBasicCallable function;
+    final Object[] arguments;
+
+    // The call was a statement, so the function's value is nil.
+    final boolean discard;
+
+    TailCall(MBasicCallable function, Object[] arguments,
+             boolean discard) {
+        this.function = function;
+        this.arguments = arguments;
+        this.discard = discard;
+    }
+
+    static Object run(Interpreter interpreter, Object result) {
+        boolean discard = false;
+
+        while (result instanceof TailCall) {
+            TailCall call = (TailCall)result;
+            discard |= call.discard;
+
+            if (call.function instanceof MBasicFunction) {
+                result = ((MBasicFunction)call.function)
+                        .invoke(interpreter, call.arguments);
+            } else if (call.function instanceof AotFunction) {
+                result = ((AotFunction)call.function)
+                        .invoke(interpreter, call.arguments);
+            } else {
+                result = call.function.call(interpreter, call.arguments);
+            }
+        }
+
+        return discard ? null : result;
+    }
+}
@@ -0,0 +1,135 @@
+package com.micharksi.mbasic;
+
+import java.util.Arrays;
+
+// The Tokenizer's output, held as parallel arrays rather than a Token per
+// token. Each token is its type, its lexeme, its literal value if it has
+// one, and its line. Tokens the Parser keeps in the tree are created on
+// demand by token().
+//
+// Tokens are scanned as the Parser asks for them, and those it has moved
+// past are dropped, so neither the whole source nor every token of it has
+// to be held at once. Indexes count from the first token of the source.
+class TokenStream {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final Tokenizer tokenizer;
+
+    private byte[] types = new byte[1024];
+    private String[] lexemes = new String[1024];
+    private Object[] literals = new Object[1024];
+    private int[] lines = new int[1024];
+
+    // The index of the first token held, of the first the Parser may
+    // still ask for, and one past the last scanned.
+    private int base = 0;
+    private int floor = 0;
+    private int size = 0;
+    private boolean ended = false;
+
+    TokenStream(Tokenizer tokenizer) {
+        this.tokenizer = tokenizer;
+    }
+
+    void add(TokenType type, String lexeme, Object literal, int line) {
+        if (size - base == types.length) makeRoom();
+
+        int i = size - base;
+        types[i] = (byte)type.ordinal();
+        lexemes[i] = lexeme;
+        literals[i] = literal;
+        lines[i] = line;
+        size++;
+
+        if (type == TokenType.EOF) ended = true;
+    }
+
+    // Drops the tokens before floor if that frees at least half the
+    // arrays, and otherwise grows them.
+    private void makeRoom() {
+        int held = size - floor;
+        if (held > types.length / 2) {
+            int capacity = types.length * 2;
+            types = Arrays.copyOf(types, capacity);
+            lexemes = Arrays.copyOf(lexemes, capacity);
+            literals = Arrays.copyOf(literals, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            return;
+        }
+
+        int from = floor - base;
+        System.arraycopy(types, from, types, 0, held);
+        System.arraycopy(lexemes, from, lexemes, 0, held);
+        System.arraycopy(literals, from, literals, 0, held);
+        System.arraycopy(lines, from, lines, 0, held);
+        Arrays.fill(lexemes, held, lexemes.length, null);
+        Arrays.fill(literals, held, literals.length, null);
+        base = floor;
+    }
+
+    // Tells the stream the Parser will not ask for a token before index.
+    void release(int index) {
+        floor = index;
+    }
+
+    int size() {
+        return size;
+    }
+
+    // Where the token at index is held, once it has been scanned.
+    private int at(int index) {
+        while (index >= size && !ended) tokenizer.scanNext();
+        return index - base;
+    }
+
+    TokenType type(int index) {
+        return TYPES[types[at(index)]];
+    }
+
+    int line(int index) {
+        return lines[at(index)];
+    }
+
+    String lexeme(int index) {
+        return lexemes[at(index)];
+    }
+
+    Object literal(int index) {
+        return literals[at(index)];
+    }
+
+    Token token(int index) {
+        int i = at(index);
+        return new Token(TYPES[types[i]], lexemes[i], literals[i], lines[i]);
+    }
+
+    // Scans the rest of the source now. Done before parsing starts, this
+    // keeps every token held.
+    void fill() {
+        while (!ended) tokenizer.scanNext();
+    }
+
+    // Formatted as a List of the same Tokens would be. This scans the
+    // rest of the source, so it is meant for before parsing starts.
+    @Override
+    public String toString() {
+        fill();
+
+        StringBuilder builder = new StringBuilder("[");
+        appendTo(builder, true);
+        return builder.append(']').toString();
+    }
+
+    // Appends the held tokens as toString() lists them, separated by
+    // commas, with EOF left out unless withEnd is set.
+    void appendTo(StringBuilder builder, boolean withEnd) {
+        int count = size - base;
+        if (!withEnd && ended) count--;
+
+        for (int i = 0; i < count; i++) {
+            if (i > 0) builder.append(", ");
+            builder.append(TYPES[types[i]]).append(' ').append(lexemes[i])
+                    .append(' ').append(literals[i]);
+        }
+    }
+}
@@ -1,56 +1,91 @@
 package com.micharksi.mbasic;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
 
 import static com.micharksi.mbasic.TokenType.*;
 
 public class Tokenizer {
-    private static final Map<String, TokenType> reservedWords;
+    // How each keyword is spelled, indexed by TokenType ordinal.
+    private static final String[] reservedWords =
+            new String[TokenType.values().length];
 
     private int start = 0;
     private int current = 0;
     private int line = 1;
 
     static {
-        reservedWords = new HashMap<>();
-        reservedWords.put("do",         DO);
-        reservedWords.put("else",       ELSE);
-        reservedWords.put("false",      FALSE);
-        reservedWords.put("if",         IF);
-        reservedWords.put("let",        LET);
-        reservedWords.put("null",       NULL);
-        reservedWords.put("return",     RETURN);
-        reservedWords.put("true",       TRUE);
-        reservedWords.put("namespace",  NAMESPACE);
-        reservedWords.put("boolean",    BOOL);
-
-        reservedWords.put("hex",        HEX);
-        reservedWords.put("bin",        BIN);
-        reservedWords.put("char",       CHAR);
-        reservedWords.put("string",     STRING);
-        reservedWords.put("int",        INT);
-        reservedWords.put("float",      FLOAT);
+        reservedWords[DO.ordinal()]         = "do";
+        reservedWords[ELSE.ordinal()]       = "else";
+        reservedWords[FALSE.ordinal()]      = "false";
+        reservedWords[IF.ordinal()]         = "if";
+        reservedWords[LET.ordinal()]        = "let";
+        reservedWords[NULL.ordinal()]       = "null";
+        reservedWords[RETURN.ordinal()]     = "return";
+        reservedWords[TRUE.ordinal()]       = "true";
+        reservedWords[NAMESPACE.ordinal()]  = "namespace";
+        reservedWords[BOOL.ordinal()]       = "boolean";
+
+        reservedWords[HEX.ordinal()]        = "hex";
+        reservedWords[BIN.ordinal()]        = "bin";
+        reservedWords[CHAR.ordinal()]       = "char";
+        reservedWords[STRING.ordinal()]     = "string";
+        reservedWords[INT.ordinal()]        = "int";
+        reservedWords[FLOAT.ordinal()]      = "float";
     }
 
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+    // The source is read in chunks into buffer, which holds the lexeme
+    // being scanned and what has been read after it. start and current
+    // index into buffer, and limit is where what has been read ends.
+    private final Reader source;
+    private char[] buffer = new char[8192];
+    private int limit = 0;
+
+    private final TokenStream tokens = new TokenStream(this);
+
+    // Each distinct identifier and literal lexeme, so that repeated ones
+    // share a String, in an open-addressed table looked up by the chars
+    // in the buffer. Also the lexeme of each kind of punctuation.
+    private String[] interned = new String[256];
+    private int internedCount = 0;
+    private final String[] spellings = new String[INT.ordinal()];
 
     Tokenizer(String source) {
+        this(new StringReader(source));
+    }
+
+    Tokenizer(Reader source) {
         this.source = source;
     }
 
-    List<Token> scanTokens() {
-        while (!isAtEnd()) {
+    // For a source that starts on the given line of a larger one.
+    Tokenizer(String source, int line) {
+        this(source);
+        this.line = line;
+    }
+
+    // Tokens are scanned as the stream is read, not all at once.
+    TokenStream scanTokens() {
+        return tokens;
+    }
+
+    // Scans until the stream has one more token, which at the end of the
+    // source is EOF.
+    void scanNext() {
+        int size = tokens.size();
+        while (tokens.size() == size) {
+            if (isAtEnd()) {
+                tokens.add(EOF, "", null, line);
+                return;
+            }
+
             // We are at the beginning of the next lexeme.
             start = current;
             scanToken();
         }
-
-        tokens.add(new Token(EOF, "", null, line));
-        return tokens;
     }
 
     private void scanToken() {
@@ -129,9 +164,13 @@ public class Tokenizer {
                 break;
 
             case '0':
-                if (match('x')) hex();
-                if (match('b')) binary();
-                number();
+                if (match('x')) {
+                    hex();
+                } else if (match('b')) {
+                    binary();
+                } else {
+                    number();
+                }
                 break;
 
             case ' ':
@@ -152,7 +191,7 @@ public class Tokenizer {
                 break;
 
             case '$':
-                advance();
+                if (!isAtEnd()) advance();
                 break;
 
             default:
@@ -170,10 +209,49 @@ public class Tokenizer {
         private void identifier(){
             while(isAlphaNumeric(peek())) advance();
 
-            String text = source.substring(start, current);
-            TokenType type = reservedWords.get(text);
-            if(type == null) type = IDENTIFIER;
-            addToken(type);
+            TokenType type = keyword();
+            if(type != null) {
+                tokens.add(type, reservedWords[type.ordinal()], null, line);
+            } else {
+                tokens.add(IDENTIFIER, intern(start, current - start), null,
+                        line);
+            }
+        }
+
+        // The keyword the lexeme spells, or null. Only keywords starting
+        // with the same letter are compared, so a name is never copied
+        // out of the buffer or hashed to find that it is not one.
+        private TokenType keyword(){
+            switch(buffer[start]){
+                case 'b': return keyword(BIN, BOOL);
+                case 'c': return keyword(CHAR);
+                case 'd': return keyword(DO);
+                case 'e': return keyword(ELSE);
+                case 'f': return keyword(FALSE, FLOAT);
+                case 'h': return keyword(HEX);
+                case 'i': return keyword(IF, INT);
+                case 'l': return keyword(LET);
+                case 'n': return keyword(NULL, NAMESPACE);
+                case 'r': return keyword(RETURN);
+                case 's': return keyword(STRING);
+                case 't': return keyword(TRUE);
+            }
+            return null;
+        }
+
+        private TokenType keyword(TokenType first, TokenType second){
+            TokenType type = keyword(first);
+            return type != null ? type : keyword(second);
+        }
+
+        private TokenType keyword(TokenType type){
+            String word = reservedWords[type.ordinal()];
+            if(current - start != word.length()) return null;
+
+            for(int i = 1; i < word.length(); i++){
+                if(buffer[start + i] != word.charAt(i)) return null;
+            }
+            return type;
         }
 
         private void number(){
@@ -187,22 +265,35 @@ public class Tokenizer {
                 while(isDigit(peek())) advance();
             }
 
+            String text = intern(start, current - start);
             if(isFloat)
-                addToken(FLOAT, Double.parseDouble(source.substring(start, current)));
+                tokens.add(FLOAT, text, Double.parseDouble(text), line);
             else
-                addToken(INT, Integer.parseInt(source.substring(start, current)));
+                tokens.add(INT, text, Integer.parseInt(text), line);
         }
 
         private void binary(){
             while(isBinary(peek())) advance();
 
-            addToken(BIN, source.substring(start, current));
+            addToken(BIN, new Bin(digits(2, "Binary")));
         }
 
         private void hex(){
             while(isHex(peek())) advance();
 
-            addToken(HEX, source.substring(start, current));
+            addToken(HEX, new Hex(digits(16, "Hexadecimal")));
+        }
+
+        // Parses the digits after a 0x or 0b prefix.
+        private long digits(int radix, String kind){
+            String digits = new String(buffer, start + 2, current - start - 2);
+            try {
+                return Long.parseLong(digits, radix);
+            } catch(NumberFormatException ex){
+                MBasic.error(line, kind + (digits.isEmpty()
+                        ? " literal has no digits." : " literal is too large."));
+                return 0;
+            }
         }
 
         private void string(){
@@ -213,13 +304,14 @@ public class Tokenizer {
 
             if(isAtEnd()){
                 MBasic.error(line, "String is not terminated.");
+                return;
             }
 
             // The closing ".
             advance();
 
             // Trim the surrounding quotes.
-            String value = source.substring(start + 1, current - 1);
+            String value = intern(start + 1, current - start - 2);
             addToken(STRING, value);
         }
 
@@ -235,19 +327,20 @@ public class Tokenizer {
 
             if(isAtEnd()){
                 MBasic.error(line, "Character is not terminated.");
+                return;
             }
 
             // The closing ".
             advance();
 
             // Trim the surrounding quotes.
-            String value = source.substring(start + 1, current - 1);
+            String value = intern(start + 1, current - start - 2);
             addToken(CHAR, value);
         }
 
     private boolean match(char expected){
         if (isAtEnd()) return false;
-        if (source.charAt(current) != expected) return false;
+        if (buffer[current] != expected) return false;
 
         current++;
         return true;
@@ -256,18 +349,19 @@ public class Tokenizer {
 
     private char peek(){
         if (isAtEnd()) return '\0';
-        return source.charAt(current);
+        return buffer[current];
     }
 
 
     private char peekNext(){
-        if (current + 1 >= source.length()) return '\0';
-        return source.charAt(current + 1);
+        while (current + 1 >= limit) {
+            if (!fill()) return '\0';
+        }
+        return buffer[current + 1];
     } // [peek-next]
 
     private char peekPrevious(){
-        if (current - 1 >= source.length()) return '\0';
-        return source.charAt(current - 1);
+        return buffer[current - 1];
     }
 
 
@@ -298,21 +392,101 @@ public class Tokenizer {
 
 
     private boolean isAtEnd() {
-        return current >= source.length();
+        return current >= limit && !fill();
+    }
+
+
+    // Reads more of the source after what is in the buffer, first moving
+    // the lexeme being scanned to the front, and returns false at the end.
+    private boolean fill() {
+        int kept = limit - start;
+        if (kept == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        System.arraycopy(buffer, start, buffer, 0, kept);
+        current -= start;
+        limit = kept;
+        start = 0;
+
+        try {
+            int read = source.read(buffer, limit, buffer.length - limit);
+            if (read <= 0) return false;
+
+            limit += read;
+            return true;
+        } catch (IOException error) {
+            throw new UncheckedIOException(error);
+        }
     }
 
 
     private char advance() {
-        return source.charAt(current++);
+        return buffer[current++];
+    }
+
+    private String text() {
+        return new String(buffer, start, current - start);
     }
 
+    // Punctuation is always spelled the same, so only one String is made
+    // for each kind.
     private void addToken(TokenType type) {
-        addToken(type, null);
+        int kind = type.ordinal();
+        if (kind < spellings.length) {
+            if (spellings[kind] == null) spellings[kind] = text();
+            tokens.add(type, spellings[kind], null, line);
+        } else {
+            addToken(type, null);
+        }
     }
 
     private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        tokens.add(type, intern(start, current - start), literal, line);
+    }
+
+    // The String of the length chars in the buffer from from, made only
+    // the first time they are seen.
+    private String intern(int from, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + buffer[from + i];
+        }
+
+        int mask = interned.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            String text = interned[i];
+            if (text == null) {
+                text = new String(buffer, from, length);
+                interned[i] = text;
+                if (++internedCount > interned.length / 2) rehash();
+                return text;
+            }
+            if (text.hashCode() == hash && spells(text, from, length)) {
+                return text;
+            }
+        }
+    }
+
+    private boolean spells(String text, int from, int length) {
+        if (text.length() != length) return false;
+
+        for (int i = 0; i < length; i++) {
+            if (text.charAt(i) != buffer[from + i]) return false;
+        }
+        return true;
+    }
+
+    private void rehash() {
+        String[] old = interned;
+        interned = new String[old.length * 2];
+        int mask = interned.length - 1;
+        for (String text : old) {
+            if (text == null) continue;
+
+            int i = text.hashCode() & mask;
+            while (interned[i] != null) i = (i + 1) & mask;
+            interned[i] = text;
+        }
     }
 
 }
@@ -0,0 +1,376 @@
+package com.micharksi.mbasic;
+
+import java.util.Arrays;
+
+import static com.micharksi.mbasic.OpCode.*;
+
+// Runs Chunks produced by the Compiler. Calls between VMFunctions push a
+// Frame instead of recursing on the Java stack.
+class VM {
+    private final Interpreter interpreter;
+    // Function frames come from the Interpreter's FrameStack: pushed by
+    // CALL, popped by RETURN and reused in place by TAIL_CALL.
+    private final FrameStack environments;
+
+    private Object[] stack = new Object[256];
+    private Frame[] frames = new Frame[64];
+
+    private static final class Frame {
+        Chunk chunk;
+        int ip;
+        Environment environment;
+        int base;
+        boolean discard;
+    }
+
+    VM(Interpreter interpreter) {
+        this.interpreter = interpreter;
+        this.environments = interpreter.frames;
+    }
+
+    void interpret(Chunk script) {
+        int depth = environments.depth();
+        try {
+            run(script, interpreter.globals, 0);
+        } catch (RuntimeError error) {
+            MBasic.runtimeError(error);
+        } finally {
+            environments.popTo(depth);
+        }
+    }
+
+    Object call(VMFunction function, Object[] arguments) {
+        int depth = environments.depth();
+        try {
+            Environment environment = environments.push(
+                    function.chunk.slotCount);
+            for (int i = 0; i < arguments.length; i++) {
+                environment.define(i, arguments[i]);
+            }
+            environment.enter(function.captures, function.chunk.slotCount);
+
+            return run(function.chunk, environment, 0);
+        } finally {
+            environments.popTo(depth);
+        }
+    }
+
+    private Object run(Chunk chunk, Environment environment, int base) {
+        Object[] stack = ensureStack(base + chunk.maxStack);
+        int[] code = chunk.code;
+        Object[] constants = chunk.constants;
+        int ip = 0;
+        int sp = base;
+        int frameCount = 0;
+        // Set once the current frame has been reused by a TAIL_CALL made
+        // from a statement, so that it returns nil.
+        boolean discard = false;
+
+        for (;;) {
+            int instruction = code[ip++];
+            int operand = instruction >>> 8;
+
+            switch (instruction & 0xFF) {
+                case CONSTANT:
+                    stack[sp++] = constants[operand];
+                    break;
+                case NIL:
+                    stack[sp++] = null;
+                    break;
+                case TRUE:
+                    stack[sp++] = true;
+                    break;
+                case FALSE:
+                    stack[sp++] = false;
+                    break;
+                case POP:
+                    sp--;
+                    break;
+
+                case GET_LOCAL:
+                    stack[sp++] = environment.getAt(operand >>> 16,
+                            operand & 0xFFFF);
+                    break;
+                case SET_LOCAL:
+                    environment.assignAt(operand >>> 16, operand & 0xFFFF,
+                            stack[sp - 1]);
+                    break;
+                case DEFINE_LOCAL:
+                    environment.define(operand, stack[--sp]);
+                    break;
+                case GET_GLOBAL:
+                    stack[sp++] = ((Cell)constants[operand]).get(
+                            (Token)constants[code[ip++]]);
+                    break;
+                case SET_GLOBAL:
+                    ((Cell)constants[operand]).assign(
+                            (Token)constants[code[ip++]], stack[sp - 1]);
+                    break;
+                case DEFINE_GLOBAL:
+                    ((Cell)constants[operand]).define(stack[--sp]);
+                    break;
+                case GET_CAPTURE:
+                    stack[sp++] = environment.captures[operand];
+                    break;
+                case BOX:
+                    stack[sp - 1] = new Box(stack[sp - 1]);
+                    break;
+                case UNBOX:
+                    stack[sp - 1] = ((Box)stack[sp - 1]).value;
+                    break;
+                case SET_BOX: {
+                    Box box = (Box)stack[--sp];
+                    box.value = stack[sp - 1];
+                    break;
+                }
+
+                case ADD: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    if (left instanceof Integer && right instanceof Integer) {
+                        stack[sp - 1] = (Integer)left + (Integer)right;
+                    } else if (left instanceof Double && right instanceof Double) {
+                        stack[sp - 1] = (Double)left + (Double)right;
+                    } else {
+                        stack[sp - 1] = Interpreter.binary(
+                                (Token)constants[operand], left, right);
+                    }
+                    break;
+                }
+                case SUBTRACT: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    if (left instanceof Integer && right instanceof Integer) {
+                        stack[sp - 1] = (Integer)left - (Integer)right;
+                    } else if (left instanceof Double && right instanceof Double) {
+                        stack[sp - 1] = (Double)left - (Double)right;
+                    } else {
+                        stack[sp - 1] = Interpreter.binary(
+                                (Token)constants[operand], left, right);
+                    }
+                    break;
+                }
+                case LESS:
+                case LESS_EQUAL:
+                case GREATER:
+                case GREATER_EQUAL: {
+                    Object right = stack[--sp];
+                    Object left = stack[sp - 1];
+                    stack[sp - 1] = compare(instruction & 0xFF,
+                            (Token)constants[operand], left, right);
+                    break;
+                }
+                case EQUAL: {
+                    Object right = stack[--sp];
+                    stack[sp - 1] = Interpreter.isEqual(stack[sp - 1], right);
+                    break;
+                }
+                case NOT_EQUAL: {
+                    Object right = stack[--sp];
+                    stack[sp - 1] = !Interpreter.isEqual(stack[sp - 1], right);
+                    break;
+                }
+                case BINARY: {
+                    Object right = stack[--sp];
+                    stack[sp - 1] = Interpreter.binary(
+                            (Token)constants[operand], stack[sp - 1], right);
+                    break;
+                }
+                case NOT:
+                    stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+                    break;
+                case NEGATE:
+                    stack[sp - 1] = Interpreter.unary(
+                            (Token)constants[operand], stack[sp - 1]);
+                    break;
+
+                case JUMP:
+                    ip += operand;
+                    break;
+                case JUMP_IF_FALSE:
+                    if (!Interpreter.isTruthy(stack[--sp])) ip += operand;
+                    break;
+                case JUMP_IF_FALSE_OR_POP:
+                    if (!Interpreter.isTruthy(stack[sp - 1])) {
+                        ip += operand;
+                    } else {
+                        sp--;
+                    }
+                    break;
+                case JUMP_IF_TRUE_OR_POP:
+                    if (Interpreter.isTruthy(stack[sp - 1])) {
+                        ip += operand;
+                    } else {
+                        sp--;
+                    }
+                    break;
+
+                case CALL: {
+                    Token paren = (Token)constants[code[ip++]];
+                    int argCount = operand;
+                    Object callee = stack[sp - argCount - 1];
+                    MBasicCallable function =
+                            Interpreter.checkCall(paren, callee, argCount);
+
+                    if (!(callee instanceof VMFunction)) {
+                        Object[] arguments = Arrays.copyOfRange(stack,
+                                sp - argCount, sp);
+
+                        sp -= argCount + 1;
+                        stack[sp++] = function.call(interpreter, arguments);
+                        break;
+                    }
+
+                    VMFunction target = (VMFunction)callee;
+                    Environment frame = environments.push(
+                            target.chunk.slotCount);
+                    enter(frame, target, sp - argCount, argCount);
+                    sp -= argCount + 1;
+
+                    Frame caller = pushFrame(frameCount++);
+                    caller.chunk = chunk;
+                    caller.ip = ip;
+                    caller.environment = environment;
+                    caller.base = base;
+                    caller.discard = discard;
+
+                    chunk = target.chunk;
+                    code = chunk.code;
+                    constants = chunk.constants;
+                    ip = 0;
+                    environment = frame;
+                    base = sp;
+                    discard = false;
+                    stack = ensureStack(base + chunk.maxStack);
+                    break;
+                }
+                case TAIL_CALL: {
+                    Token paren = (Token)constants[code[ip++]];
+                    int argCount = operand & 0xFF;
+                    Object callee = stack[sp - argCount - 1];
+                    MBasicCallable function =
+                            Interpreter.checkCall(paren, callee, argCount);
+
+                    if (!(callee instanceof VMFunction)) {
+                        Object[] arguments = Arrays.copyOfRange(stack,
+                                sp - argCount, sp);
+
+                        sp -= argCount + 1;
+                        Object result = function.call(interpreter, arguments);
+                        stack[sp++] = (operand & DISCARD) != 0 ? null : result;
+                        break;
+                    }
+
+                    // Replace the current frame rather than pushing one.
+                    VMFunction target = (VMFunction)callee;
+                    environments.pop();
+                    Environment frame = environments.push(
+                            target.chunk.slotCount);
+                    enter(frame, target, sp - argCount, argCount);
+                    sp = base;
+
+                    chunk = target.chunk;
+                    code = chunk.code;
+                    constants = chunk.constants;
+                    ip = 0;
+                    environment = frame;
+                    discard |= (operand & DISCARD) != 0;
+                    stack = ensureStack(base + chunk.maxStack);
+                    break;
+                }
+                case CLOSURE: {
+                    Chunk target = (Chunk)constants[operand];
+                    Object[] captures = new Object[target.captures.size()];
+                    VMFunction function = new VMFunction(target, captures);
+                    environment.capture(target.captures, captures, function);
+                    stack[sp++] = function;
+                    break;
+                }
+                case PUSH_SCOPE:
+                    environment = new Environment(environment, operand);
+                    break;
+                case POP_SCOPE:
+                    environment = environment.enclosing;
+                    break;
+
+                case RETURN: {
+                    Object result = stack[--sp];
+                    if (discard) result = null;
+                    if (frameCount == 0) return result;
+
+                    environments.pop();
+                    Frame caller = frames[--frameCount];
+                    chunk = caller.chunk;
+                    code = chunk.code;
+                    constants = chunk.constants;
+                    ip = caller.ip;
+                    environment = caller.environment;
+                    sp = base;
+                    base = caller.base;
+                    discard = caller.discard;
+
+                    caller.chunk = null;
+                    caller.environment = null;
+
+                    stack[sp++] = result;
+                    break;
+                }
+
+                default:
+                    throw new IllegalStateException(
+                            "Unknown opcode " + (instruction & 0xFF) + ".");
+            }
+        }
+    }
+
+    private static Object compare(int op, Token operator,
+                                  Object left, Object right) {
+        if (left instanceof Integer && right instanceof Integer) {
+            int a = (Integer)left;
+            int b = (Integer)right;
+            switch (op) {
+                case LESS: return a < b;
+                case LESS_EQUAL: return a <= b;
+                case GREATER: return a > b;
+                default: return a >= b;
+            }
+        }
+
+        if (left instanceof Double && right instanceof Double) {
+            double a = (Double)left;
+            double b = (Double)right;
+            switch (op) {
+                case LESS: return a < b;
+                case LESS_EQUAL: return a <= b;
+                case GREATER: return a > b;
+                default: return a >= b;
+            }
+        }
+
+        return Interpreter.binary(operator, left, right);
+    }
+
+    // Fills a callee's frame with the arguments on the stack from start.
+    private void enter(Environment frame, VMFunction target,
+                       int start, int argCount) {
+        for (int i = 0; i < argCount; i++) {
+            frame.define(i, stack[start + i]);
+        }
+        frame.enter(target.captures, target.chunk.slotCount);
+    }
+
+    private Object[] ensureStack(int size) {
+        if (size > stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(size, stack.length * 2));
+        }
+        return stack;
+    }
+
+    private Frame pushFrame(int index) {
+        if (index == frames.length) {
+            frames = Arrays.copyOf(frames, frames.length * 2);
+        }
+        if (frames[index] == null) frames[index] = new Frame();
+        return frames[index];
+    }
+}
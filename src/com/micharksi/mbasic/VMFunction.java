@@ -0,0 +1,33 @@
+package com.micharksi.mbasic;
+
+class VMFunction implements MBasicCallable {
+    final Chunk chunk;
+
+    final Object[] captures;
+
+    VMFunction(Chunk chunk, Object[] captures) {
+        this.chunk = chunk;
+        this.captures = captures;
+    }
+
+
+    @Override
+    public String toString() {
+        return "<fn " + chunk.name + ">";
+    }
+
+
+    @Override
+    public int arity() {
+        return chunk.arity;
+    }
+
+
+    // Only reached when something other than the VM's own dispatch loop
+    // makes the call, so it gets a VM of its own.
+    @Override
+    public Object call(Interpreter interpreter,
+                       Object[] arguments) {
+        return new VM(interpreter).call(this, arguments);
+    }
+}